@@ -1,6 +1,10 @@
 package org.apache.guacamole.auth.k8s;
 
 import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.k8s.connection.K8sVNCPrewarmer;
+import org.apache.guacamole.auth.k8s.connection.K8sVNCSharedHosts;
+import org.apache.guacamole.auth.k8s.connection.K8sVNCTopologyHints;
+import org.apache.guacamole.environment.LocalEnvironment;
 import org.apache.guacamole.net.auth.AbstractAuthenticationProvider;
 import org.apache.guacamole.net.auth.AuthenticatedUser;
 import org.apache.guacamole.net.auth.Credentials;
@@ -12,6 +16,11 @@ import org.apache.guacamole.net.auth.UserContext;
  */
 public class K8sVNCAuthenticationProvider extends AbstractAuthenticationProvider {
 
+    public K8sVNCAuthenticationProvider() throws GuacamoleException {
+        // Start pre-warming pods ahead of predicted logins, if configured
+        K8sVNCPrewarmer.getInstance().start(LocalEnvironment.getInstance());
+    }
+
     @Override
     public String getIdentifier() {
         return "k8s-vnc";
@@ -49,4 +58,11 @@ public class K8sVNCAuthenticationProvider extends AbstractAuthenticationProvider
         return new K8sVNCUserContext(this, authenticatedUser, decorated);
     }
 
+    @Override
+    public void shutdown() {
+        K8sVNCPrewarmer.getInstance().shutdown();
+        K8sVNCSharedHosts.getInstance().shutdown();
+        K8sVNCTopologyHints.getInstance().shutdown();
+    }
+
 }
@@ -1,6 +1,7 @@
 package org.apache.guacamole.auth.k8s;
 
 import org.apache.guacamole.properties.BooleanGuacamoleProperty;
+import org.apache.guacamole.properties.IntegerGuacamoleProperty;
 import org.apache.guacamole.properties.StringGuacamoleProperty;
 
 /**
@@ -50,4 +51,39 @@ public class K8sVNCProperties {
         }
     };
 
+    public static final StringGuacamoleProperty K8S_VNC_CLUSTERS = new StringGuacamoleProperty() {
+        @Override
+        public String getName() {
+            return "k8s-vnc-clusters";
+        }
+    };
+
+    public static final StringGuacamoleProperty K8S_VNC_PRIORITY_CLASS = new StringGuacamoleProperty() {
+        @Override
+        public String getName() {
+            return "k8s-vnc-priority-class";
+        }
+    };
+
+    public static final IntegerGuacamoleProperty K8S_VNC_SHARED_SESSIONS = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() {
+            return "k8s-vnc-shared-sessions";
+        }
+    };
+
+    public static final IntegerGuacamoleProperty K8S_VNC_PREWARM_LEAD_TIME = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() {
+            return "k8s-vnc-prewarm-lead-time";
+        }
+    };
+
+    public static final IntegerGuacamoleProperty K8S_VNC_PREWARM_EXPIRY = new IntegerGuacamoleProperty() {
+        @Override
+        public String getName() {
+            return "k8s-vnc-prewarm-expiry";
+        }
+    };
+
 }
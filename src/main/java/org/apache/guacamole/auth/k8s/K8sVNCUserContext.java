@@ -64,7 +64,8 @@ public class K8sVNCUserContext extends DelegatingUserContext {
                         new Field("k8s-vnc-image", Field.Type.TEXT),
                         new Field("k8s-vnc-endpoint", Field.Type.TEXT),
                         new Field("k8s-vnc-skip-tls-verify", Field.Type.ENUM,
-                                java.util.Arrays.asList("true", "false")))));
+                                java.util.Arrays.asList("true", "false")),
+                        new Field("k8s-vnc-shared", Field.Type.ENUM, java.util.Arrays.asList("true", "false")))));
         return attributes;
     }
 
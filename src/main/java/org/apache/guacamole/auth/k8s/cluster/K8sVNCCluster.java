@@ -0,0 +1,303 @@
+package org.apache.guacamole.auth.k8s.cluster;
+
+import io.kubernetes.client.custom.Quantity;
+import io.kubernetes.client.openapi.ApiClient;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1Container;
+import io.kubernetes.client.openapi.models.V1Node;
+import io.kubernetes.client.openapi.models.V1NodeCondition;
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.util.Config;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single Kubernetes API server which pods may be provisioned on, together
+ * with the live signals used to decide whether new users should be placed
+ * there.
+ */
+public class K8sVNCCluster {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCCluster.class);
+
+    /**
+     * How long gathered capacity signals are considered fresh, in
+     * milliseconds.
+     */
+    private static final long SIGNAL_TTL = 30000;
+
+    /**
+     * How long a cluster is excluded from new placements after a failed
+     * provisioning attempt, in milliseconds.
+     */
+    private static final long FAILURE_BACKOFF = 60000;
+
+    /**
+     * Smoothing factor of the provisioning latency moving average.
+     */
+    private static final double LATENCY_ALPHA = 0.3;
+
+    private final String endpoint;
+    private final boolean skipTls;
+    private final int weight;
+
+    private ApiClient client;
+
+    private volatile double provisioningLatency = -1;
+    private volatile long unhealthyUntil = 0;
+
+    private Signals signals;
+    private long signalsFetched = 0;
+
+    /**
+     * Creates a new cluster entry.
+     *
+     * @param endpoint
+     *     The Kubernetes API URL, or null to use the default client
+     *     configuration (kubeconfig or in-cluster service account).
+     *
+     * @param skipTls
+     *     Whether TLS certificate verification should be skipped.
+     *
+     * @param weight
+     *     The relative preference of this cluster for new placements. A
+     *     weight of zero drains the cluster: existing users stay, new users
+     *     are placed elsewhere.
+     */
+    public K8sVNCCluster(String endpoint, boolean skipTls, int weight) {
+        this.endpoint = endpoint;
+        this.skipTls = skipTls;
+        this.weight = weight;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public boolean isSkipTls() {
+        return skipTls;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Returns a human-readable name for log messages.
+     *
+     * @return
+     *     The endpoint of this cluster, or "default" for the default client.
+     */
+    public String getName() {
+        return endpoint != null ? endpoint : "default";
+    }
+
+    /**
+     * Returns a CoreV1Api bound to this cluster. The underlying ApiClient is
+     * created once and reused so its connection pool is shared between
+     * connections.
+     *
+     * @return
+     *     A CoreV1Api for this cluster.
+     *
+     * @throws GuacamoleException
+     *     If the Kubernetes client configuration cannot be loaded.
+     */
+    public synchronized CoreV1Api getApi() throws GuacamoleException {
+        if (client == null) {
+            try {
+                ApiClient newClient = Config.defaultClient();
+                if (endpoint != null && !endpoint.isEmpty()) {
+                    logger.info("Using Kubernetes API endpoint: {} (skipTls={})", endpoint, skipTls);
+                    newClient.setBasePath(endpoint);
+                }
+                try {
+                    newClient.setVerifyingSsl(!skipTls);
+                } catch (Exception e) {
+                    logger.warn("Failed to set SSL verification to {}: {}. Forcing skip-tls.", !skipTls,
+                            e.getMessage());
+                    newClient.setVerifyingSsl(false);
+                }
+                client = newClient;
+            } catch (java.io.IOException e) {
+                throw new GuacamoleServerException("Unable to load Kubernetes client configuration: "
+                        + e.getMessage(), e);
+            }
+        }
+        return new CoreV1Api(client);
+    }
+
+    /**
+     * Records how long it took to bring a newly created pod to the point
+     * where its VNC port accepted connections.
+     *
+     * @param millis
+     *     The provisioning latency, in milliseconds.
+     */
+    public void recordProvisioningLatency(long millis) {
+        double previous = provisioningLatency;
+        provisioningLatency = previous < 0 ? millis : previous + LATENCY_ALPHA * (millis - previous);
+        unhealthyUntil = 0;
+    }
+
+    /**
+     * Records a failed provisioning attempt, temporarily excluding this
+     * cluster from new placements.
+     */
+    public void recordFailure() {
+        unhealthyUntil = System.currentTimeMillis() + FAILURE_BACKOFF;
+    }
+
+    /**
+     * Returns the moving average of recent provisioning latency.
+     *
+     * @return
+     *     The average latency in milliseconds, or -1 if nothing has been
+     *     provisioned on this cluster yet.
+     */
+    public double getProvisioningLatency() {
+        return provisioningLatency;
+    }
+
+    public boolean isHealthy() {
+        return System.currentTimeMillis() >= unhealthyUntil;
+    }
+
+    /**
+     * Returns the current capacity signals of this cluster, querying the API
+     * server if the cached values are stale.
+     *
+     * @return
+     *     The current signals. Values which could not be gathered (e.g. due
+     *     to missing RBAC permissions) are left unknown.
+     */
+    public synchronized Signals getSignals() {
+        long now = System.currentTimeMillis();
+        if (signals != null && now - signalsFetched < SIGNAL_TTL)
+            return signals;
+
+        Signals fresh = new Signals();
+        try {
+            CoreV1Api api = getApi();
+
+            // Sum allocatable resources of Ready, schedulable nodes
+            BigDecimal allocatableCpu = BigDecimal.ZERO;
+            BigDecimal allocatableMemory = BigDecimal.ZERO;
+            for (V1Node node : api.listNode().execute().getItems()) {
+                if (node.getSpec() != null && Boolean.TRUE.equals(node.getSpec().getUnschedulable()))
+                    continue;
+                if (!isReady(node) || node.getStatus().getAllocatable() == null)
+                    continue;
+                Map<String, Quantity> allocatable = node.getStatus().getAllocatable();
+                allocatableCpu = allocatableCpu.add(getAmount(allocatable, "cpu"));
+                allocatableMemory = allocatableMemory.add(getAmount(allocatable, "memory"));
+            }
+
+            // Subtract requests of scheduled pods, counting those still Pending
+            BigDecimal requestedCpu = BigDecimal.ZERO;
+            BigDecimal requestedMemory = BigDecimal.ZERO;
+            int pending = 0;
+            for (V1Pod pod : api.listPodForAllNamespaces()
+                    .fieldSelector("status.phase!=Succeeded,status.phase!=Failed").execute().getItems()) {
+                if (pod.getStatus() != null && "Pending".equals(pod.getStatus().getPhase()))
+                    pending++;
+                if (pod.getSpec() == null || pod.getSpec().getNodeName() == null)
+                    continue;
+                for (V1Container container : pod.getSpec().getContainers()) {
+                    if (container.getResources() == null || container.getResources().getRequests() == null)
+                        continue;
+                    requestedCpu = requestedCpu.add(getAmount(container.getResources().getRequests(), "cpu"));
+                    requestedMemory = requestedMemory.add(
+                            getAmount(container.getResources().getRequests(), "memory"));
+                }
+            }
+
+            fresh.known = true;
+            fresh.pendingPods = pending;
+            fresh.allocatableCpu = allocatableCpu;
+            fresh.allocatableMemory = allocatableMemory;
+            fresh.freeCpu = allocatableCpu.subtract(requestedCpu);
+            fresh.freeMemory = allocatableMemory.subtract(requestedMemory);
+
+        } catch (io.kubernetes.client.openapi.ApiException e) {
+            logger.warn("Unable to gather capacity signals from cluster {} (HTTP {}). Using weight only.",
+                    getName(), e.getCode());
+            if (e.getCode() == 0)
+                recordFailure();
+        } catch (GuacamoleException e) {
+            logger.warn("Unable to gather capacity signals from cluster {}: {}", getName(), e.getMessage());
+            recordFailure();
+        }
+
+        signals = fresh;
+        signalsFetched = now;
+        return signals;
+    }
+
+    private static boolean isReady(V1Node node) {
+        if (node.getStatus() == null || node.getStatus().getConditions() == null)
+            return false;
+        for (V1NodeCondition condition : node.getStatus().getConditions()) {
+            if ("Ready".equals(condition.getType()))
+                return "True".equals(condition.getStatus());
+        }
+        return false;
+    }
+
+    private static BigDecimal getAmount(Map<String, Quantity> resources, String name) {
+        Quantity quantity = resources.get(name);
+        return quantity != null ? quantity.getNumber() : BigDecimal.ZERO;
+    }
+
+    /**
+     * Snapshot of the capacity of a cluster. CPU is expressed in cores and
+     * memory in bytes.
+     */
+    public static class Signals {
+
+        private boolean known = false;
+        private int pendingPods = 0;
+        private BigDecimal allocatableCpu = BigDecimal.ZERO;
+        private BigDecimal allocatableMemory = BigDecimal.ZERO;
+        private BigDecimal freeCpu = BigDecimal.ZERO;
+        private BigDecimal freeMemory = BigDecimal.ZERO;
+
+        public boolean isKnown() {
+            return known;
+        }
+
+        public int getPendingPods() {
+            return pendingPods;
+        }
+
+        public BigDecimal getFreeCpu() {
+            return freeCpu;
+        }
+
+        public BigDecimal getFreeMemory() {
+            return freeMemory;
+        }
+
+        /**
+         * Returns the fraction of allocatable capacity still free, taking
+         * whichever of CPU or memory is scarcer.
+         *
+         * @return
+         *     A value between 0 and 1.
+         */
+        public double getHeadroom() {
+            if (allocatableCpu.signum() <= 0 || allocatableMemory.signum() <= 0)
+                return 0;
+            double cpu = freeCpu.doubleValue() / allocatableCpu.doubleValue();
+            double memory = freeMemory.doubleValue() / allocatableMemory.doubleValue();
+            return Math.max(0, Math.min(cpu, memory));
+        }
+
+    }
+
+}
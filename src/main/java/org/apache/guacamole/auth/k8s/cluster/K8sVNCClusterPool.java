@@ -0,0 +1,378 @@
+package org.apache.guacamole.auth.k8s.cluster;
+
+import io.kubernetes.client.custom.Quantity;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.GuacamoleServerException;
+import org.apache.guacamole.auth.k8s.K8sVNCProperties;
+import org.apache.guacamole.auth.k8s.connection.K8sVNCConnection;
+import org.apache.guacamole.environment.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The set of Kubernetes clusters pods may be placed on. When a pool is
+ * configured via "k8s-vnc-clusters", each new user/connection pair is placed
+ * on the cluster with the best live capacity, and stays there for as long as
+ * its PVC exists so home directories are never split across clusters.
+ */
+public class K8sVNCClusterPool {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCClusterPool.class);
+
+    private static volatile K8sVNCClusterPool instance;
+
+    /**
+     * Provisioning latency at which a cluster's score is halved, in
+     * milliseconds.
+     */
+    private static final double LATENCY_REFERENCE = 30000;
+
+    private final List<K8sVNCCluster> clusters;
+
+    /**
+     * Clusters for explicitly pinned endpoints, keyed by endpoint and TLS
+     * mode.
+     */
+    private final Map<String, K8sVNCCluster> pinned = new ConcurrentHashMap<>();
+
+    /**
+     * Clusters previously chosen for each namespace/PVC pair.
+     */
+    private final Map<String, K8sVNCCluster> placements = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> placementLocks = new ConcurrentHashMap<>();
+
+    K8sVNCClusterPool(List<K8sVNCCluster> clusters) {
+        this.clusters = Collections.unmodifiableList(clusters);
+    }
+
+    /**
+     * Returns the pool defined in guacamole.properties, parsing it on first
+     * use.
+     *
+     * @param environment
+     *     The Guacamole environment to read the "k8s-vnc-clusters" property
+     *     from.
+     *
+     * @return
+     *     The shared cluster pool. The pool is empty if no clusters are
+     *     configured.
+     *
+     * @throws GuacamoleException
+     *     If the property cannot be read or is malformed.
+     */
+    public static K8sVNCClusterPool getInstance(Environment environment) throws GuacamoleException {
+        if (instance == null) {
+            synchronized (K8sVNCClusterPool.class) {
+                if (instance == null) {
+                    instance = new K8sVNCClusterPool(parse(K8sVNCConnection.getProperty(environment,
+                            K8sVNCProperties.K8S_VNC_CLUSTERS, null)));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Parses a cluster pool definition. Entries are separated by commas, and
+     * each entry is an endpoint optionally followed by semicolon-separated
+     * options, e.g. "https://a:6443;tls=skip;weight=2". The endpoint
+     * "default" refers to the default client configuration.
+     *
+     * @param value
+     *     The pool definition, or null.
+     *
+     * @return
+     *     The parsed clusters, in definition order.
+     *
+     * @throws GuacamoleException
+     *     If an entry contains an unknown option or an invalid value.
+     */
+    static List<K8sVNCCluster> parse(String value) throws GuacamoleException {
+        List<K8sVNCCluster> result = new ArrayList<>();
+        if (value == null || value.trim().isEmpty())
+            return result;
+
+        for (String entry : value.split(",")) {
+            String[] parts = entry.trim().split(";");
+            if (parts[0].trim().isEmpty())
+                continue;
+
+            String endpoint = parts[0].trim();
+            if ("default".equalsIgnoreCase(endpoint))
+                endpoint = null;
+
+            boolean skipTls = false;
+            int weight = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String[] option = parts[i].trim().split("=", 2);
+                String name = option[0].trim();
+                String optionValue = option.length > 1 ? option[1].trim() : "";
+                if ("tls".equalsIgnoreCase(name)) {
+                    if ("skip".equalsIgnoreCase(optionValue))
+                        skipTls = true;
+                    else if (!"verify".equalsIgnoreCase(optionValue))
+                        throw new GuacamoleServerException("Invalid TLS mode in k8s-vnc-clusters: " + optionValue);
+                } else if ("weight".equalsIgnoreCase(name)) {
+                    try {
+                        weight = Integer.parseInt(optionValue);
+                    } catch (NumberFormatException e) {
+                        throw new GuacamoleServerException("Invalid weight in k8s-vnc-clusters: " + optionValue);
+                    }
+                    if (weight < 0)
+                        throw new GuacamoleServerException("Invalid weight in k8s-vnc-clusters: " + optionValue);
+                } else {
+                    throw new GuacamoleServerException("Unknown option in k8s-vnc-clusters: " + name);
+                }
+            }
+
+            result.add(new K8sVNCCluster(endpoint, skipTls, weight));
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether any clusters are configured in the pool.
+     *
+     * @return
+     *     true if the pool is empty and connections should use their own
+     *     endpoint settings, false otherwise.
+     */
+    public boolean isEmpty() {
+        return clusters.isEmpty();
+    }
+
+    /**
+     * Returns the cluster for an explicitly chosen endpoint, bypassing
+     * placement.
+     *
+     * @param endpoint
+     *     The Kubernetes API URL, or null/empty for the default client.
+     *
+     * @param skipTls
+     *     Whether TLS certificate verification should be skipped.
+     *
+     * @return
+     *     The cluster for the given endpoint.
+     */
+    public K8sVNCCluster getCluster(String endpoint, boolean skipTls) {
+        String normalized = (endpoint != null && !endpoint.isEmpty()) ? endpoint : null;
+        return pinned.computeIfAbsent(normalized + "|" + skipTls,
+                key -> new K8sVNCCluster(normalized, skipTls, 1));
+    }
+
+    /**
+     * Resolves the cluster a user/connection pair should be provisioned on.
+     * If an endpoint is given, or the pool is empty, that endpoint is used
+     * as-is. Otherwise the cluster already holding the PVC is returned, and
+     * only if no cluster holds it is a new placement made based on weight
+     * and live capacity.
+     *
+     * @param endpoint
+     *     The endpoint explicitly configured for the connection, or null.
+     *
+     * @param skipTls
+     *     Whether TLS verification should be skipped for an explicit
+     *     endpoint.
+     *
+     * @param namespace
+     *     The namespace the PVC and pod live in.
+     *
+     * @param pvcName
+     *     The name of the user's PVC.
+     *
+     * @param cpu
+     *     The CPU the pod will request.
+     *
+     * @param memory
+     *     The memory the pod will request.
+     *
+     * @return
+     *     The cluster to provision on.
+     *
+     * @throws GuacamoleException
+     *     If the cluster holding the PVC cannot be determined or no cluster
+     *     is available.
+     */
+    public K8sVNCCluster resolve(String endpoint, boolean skipTls, String namespace, String pvcName,
+            String cpu, String memory) throws GuacamoleException {
+        return resolve(endpoint, skipTls, namespace, pvcName, cpu, memory, true);
+    }
+
+    /**
+     * Resolves the cluster the shared host pods of a connection should run
+     * on. Shared hosts have no PVC, so the placement is only remembered for
+     * the lifetime of this Guacamole instance; keeping all hosts of a
+     * connection together lets sessions be packed densely.
+     *
+     * @param endpoint
+     *     The endpoint explicitly configured for the connection, or null.
+     *
+     * @param skipTls
+     *     Whether TLS verification should be skipped for an explicit
+     *     endpoint.
+     *
+     * @param namespace
+     *     The namespace the host pods live in.
+     *
+     * @param hostPrefix
+     *     The common name prefix of the connection's host pods.
+     *
+     * @param cpu
+     *     The CPU each host pod will request.
+     *
+     * @param memory
+     *     The memory each host pod will request.
+     *
+     * @return
+     *     The cluster to provision on.
+     *
+     * @throws GuacamoleException
+     *     If no cluster is available.
+     */
+    public K8sVNCCluster resolveShared(String endpoint, boolean skipTls, String namespace, String hostPrefix,
+            String cpu, String memory) throws GuacamoleException {
+        return resolve(endpoint, skipTls, namespace, hostPrefix, cpu, memory, false);
+    }
+
+    private K8sVNCCluster resolve(String endpoint, boolean skipTls, String namespace, String name,
+            String cpu, String memory, boolean hasPvc) throws GuacamoleException {
+
+        if ((endpoint != null && !endpoint.isEmpty()) || clusters.isEmpty())
+            return getCluster(endpoint, skipTls);
+
+        String key = namespace + "/" + name;
+        K8sVNCCluster placed = placements.get(key);
+        if (placed != null)
+            return placed;
+
+        synchronized (placementLocks.computeIfAbsent(key, k -> new Object())) {
+            placed = placements.get(key);
+            if (placed != null)
+                return placed;
+
+            placed = hasPvc ? findPvc(namespace, name) : null;
+            if (placed != null) {
+                logger.info("PVC {} already exists on cluster {}. Keeping placement.", name, placed.getName());
+            } else {
+                placed = choose(cpu, memory);
+                logger.info("Placing {} on cluster {}.", name, placed.getName());
+            }
+
+            placements.put(key, placed);
+            return placed;
+        }
+    }
+
+    /**
+     * Discards the remembered placement of a PVC, e.g. after provisioning
+     * failed. If the PVC was created regardless, the next resolution finds
+     * it again on the same cluster.
+     *
+     * @param namespace
+     *     The namespace of the PVC.
+     *
+     * @param pvcName
+     *     The name of the PVC.
+     */
+    public void forget(String namespace, String pvcName) {
+        placements.remove(namespace + "/" + pvcName);
+    }
+
+    /**
+     * Returns the cluster on which the given PVC exists, if any. Clusters
+     * which cannot be checked are skipped. If the PVC is not found elsewhere,
+     * the lookup fails rather than risk creating a second home directory
+     * while the real one sits on an unreachable cluster.
+     */
+    private K8sVNCCluster findPvc(String namespace, String pvcName) throws GuacamoleException {
+        GuacamoleServerException unchecked = null;
+        for (K8sVNCCluster cluster : clusters) {
+            try {
+                cluster.getApi().readNamespacedPersistentVolumeClaim(pvcName, namespace).execute();
+                return cluster;
+            } catch (io.kubernetes.client.openapi.ApiException e) {
+                if (e.getCode() != 404) {
+                    logger.warn("Unable to check for PVC {} on cluster {} (HTTP {}).", pvcName, cluster.getName(),
+                            e.getCode());
+                    unchecked = new GuacamoleServerException("Unable to check for PVC " + pvcName + " on cluster "
+                            + cluster.getName() + " (HTTP " + e.getCode() + ")", e);
+                }
+            } catch (GuacamoleException e) {
+                logger.warn("Unable to check for PVC {} on cluster {}: {}", pvcName, cluster.getName(),
+                        e.getMessage());
+                unchecked = new GuacamoleServerException("Unable to check for PVC " + pvcName + " on cluster "
+                        + cluster.getName() + ": " + e.getMessage(), e);
+            }
+        }
+
+        if (unchecked != null)
+            throw unchecked;
+        return null;
+    }
+
+    /**
+     * Chooses the cluster for a new placement. Clusters which recently
+     * failed or cannot fit the requested resources are only used if no
+     * other cluster is available.
+     */
+    private K8sVNCCluster choose(String cpu, String memory) throws GuacamoleException {
+        BigDecimal requestedCpu = (cpu != null && !cpu.isEmpty()) ? new Quantity(cpu).getNumber() : BigDecimal.ZERO;
+        BigDecimal requestedMemory = (memory != null && !memory.isEmpty()) ? new Quantity(memory).getNumber()
+                : BigDecimal.ZERO;
+
+        K8sVNCCluster best = null;
+        double bestScore = -1;
+        K8sVNCCluster fallback = null;
+        double fallbackScore = -1;
+
+        for (K8sVNCCluster cluster : clusters) {
+            if (cluster.getWeight() == 0)
+                continue;
+
+            K8sVNCCluster.Signals signals = cluster.getSignals();
+            double score = cluster.getWeight();
+            boolean fits = true;
+
+            if (signals.isKnown()) {
+                fits = signals.getFreeCpu().compareTo(requestedCpu) >= 0
+                        && signals.getFreeMemory().compareTo(requestedMemory) >= 0;
+                score *= 0.1 + signals.getHeadroom();
+                score /= 1 + signals.getPendingPods();
+            }
+
+            double latency = cluster.getProvisioningLatency();
+            if (latency > 0)
+                score /= 1 + latency / LATENCY_REFERENCE;
+
+            logger.debug("Cluster {}: score={}, fits={}, healthy={}, pending={}, latency={}ms",
+                    cluster.getName(), score, fits, cluster.isHealthy(), signals.getPendingPods(), latency);
+
+            if (fits && cluster.isHealthy()) {
+                if (score > bestScore) {
+                    best = cluster;
+                    bestScore = score;
+                }
+            } else if (score > fallbackScore) {
+                fallback = cluster;
+                fallbackScore = score;
+            }
+        }
+
+        if (best != null)
+            return best;
+        if (fallback != null) {
+            logger.warn("No cluster has free capacity. Placing on {} anyway.", fallback.getName());
+            return fallback;
+        }
+        throw new GuacamoleServerException("No Kubernetes cluster in k8s-vnc-clusters accepts new placements.");
+    }
+
+}
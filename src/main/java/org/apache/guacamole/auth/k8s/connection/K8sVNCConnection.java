@@ -1,16 +1,15 @@
 package org.apache.guacamole.auth.k8s.connection;
 
-import io.kubernetes.client.openapi.ApiClient;
-import io.kubernetes.client.openapi.Configuration;
 import io.kubernetes.client.openapi.apis.CoreV1Api;
 import io.kubernetes.client.openapi.models.*;
-import io.kubernetes.client.util.Config;
 
 import io.kubernetes.client.custom.Quantity;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.apache.guacamole.GuacamoleException;
 import org.apache.guacamole.GuacamoleServerException;
@@ -28,6 +27,8 @@ import org.slf4j.LoggerFactory;
 import org.apache.guacamole.net.auth.DelegatingConnection;
 
 import org.apache.guacamole.auth.k8s.K8sVNCProperties;
+import org.apache.guacamole.auth.k8s.cluster.K8sVNCCluster;
+import org.apache.guacamole.auth.k8s.cluster.K8sVNCClusterPool;
 import org.apache.guacamole.environment.Environment;
 import org.apache.guacamole.environment.LocalEnvironment;
 
@@ -65,7 +66,8 @@ public class K8sVNCConnection extends DelegatingConnection {
         GuacamoleConfiguration config = getConfiguration();
         if (config != null) {
             String[] k8sParams = { "k8s-vnc-enabled", "k8s-vnc-namespace", "k8s-vnc-cpu", "k8s-vnc-memory",
-                    "k8s-vnc-pvc-size", "k8s-vnc-image", "k8s-vnc-endpoint", "k8s-vnc-skip-tls-verify" };
+                    "k8s-vnc-pvc-size", "k8s-vnc-image", "k8s-vnc-endpoint", "k8s-vnc-skip-tls-verify",
+                    "k8s-vnc-shared" };
             for (String param : k8sParams) {
                 String value = config.getParameter(param);
                 if (value != null) {
@@ -90,7 +92,8 @@ public class K8sVNCConnection extends DelegatingConnection {
         if (config != null && attributes != null) {
 
             String[] k8sParams = { "k8s-vnc-enabled", "k8s-vnc-namespace", "k8s-vnc-cpu", "k8s-vnc-memory",
-                    "k8s-vnc-pvc-size", "k8s-vnc-image", "k8s-vnc-endpoint", "k8s-vnc-skip-tls-verify" };
+                    "k8s-vnc-pvc-size", "k8s-vnc-image", "k8s-vnc-endpoint", "k8s-vnc-skip-tls-verify",
+                    "k8s-vnc-shared" };
 
             for (String param : k8sParams) {
                 String value = attributes.get(param);
@@ -137,8 +140,13 @@ public class K8sVNCConnection extends DelegatingConnection {
             return new SimpleGuacamoleTunnel(socket);
         }
 
+        // Shared-host mode places the session on a multi-session pod
+        boolean isShared = "true".equalsIgnoreCase(attributes.get("k8s-vnc-shared"))
+                || "true".equalsIgnoreCase(params.get("k8s-vnc-shared"));
+
         logger.info("Connecting to Kubernetes VNC Pod for user: {}", userId);
 
+        K8sVNCCluster cluster = null;
         try {
             // 1. Initial configuration from parameters/properties
             String namespace = getParam(connectionConfig, "k8s-namespace",
@@ -153,12 +161,18 @@ public class K8sVNCConnection extends DelegatingConnection {
             String pvcSize = getParam(connectionConfig, "k8s-pvc-size",
                     getProperty(environment, K8sVNCProperties.K8S_VNC_PVC_SIZE, "1Gi"));
 
+            // The global endpoint is only a fallback when no cluster pool is
+            // configured; a per-connection endpoint always pins the connection
+            K8sVNCClusterPool clusterPool = K8sVNCClusterPool.getInstance(environment);
             String apiEndpoint = getParam(connectionConfig, "k8s-vnc-endpoint",
-                    getProperty(environment, K8sVNCProperties.K8S_VNC_ENDPOINT, null));
+                    clusterPool.isEmpty() ? getProperty(environment, K8sVNCProperties.K8S_VNC_ENDPOINT, null)
+                            : null);
 
             boolean skipTls = "true".equalsIgnoreCase(getParam(connectionConfig, "k8s-vnc-skip-tls-verify",
                     getProperty(environment, K8sVNCProperties.K8S_VNC_SKIP_TLS_VERIFY, false).toString()));
 
+            String priorityClass = getProperty(environment, K8sVNCProperties.K8S_VNC_PRIORITY_CLASS, null);
+
             String cpu = "1";
             String memory = "2Gi";
 
@@ -203,56 +217,71 @@ public class K8sVNCConnection extends DelegatingConnection {
 
             GuacamoleProxyConfiguration proxyConfig = environment.getDefaultGuacamoleProxyConfiguration();
 
-            // Initialize Kubernetes Client
-            ApiClient client = Config.defaultClient();
-            if (apiEndpoint != null && !apiEndpoint.isEmpty()) {
-                logger.info("Using Kubernetes API endpoint: {} (skipTls={})", apiEndpoint, skipTls);
-                client.setBasePath(apiEndpoint);
-            }
-            try {
-                client.setVerifyingSsl(!skipTls);
-            } catch (Exception e) {
-                logger.warn("Failed to set SSL verification to {}: {}. Forcing skip-tls.", !skipTls, e.getMessage());
-                client.setVerifyingSsl(false);
-            }
-            Configuration.setDefaultApiClient(client);
-            CoreV1Api api = new CoreV1Api();
-
             String sanitizedUserId = userId.toLowerCase().replaceAll("[^a-z0-9]", "-");
             // Use the connection identifier (unique per Guacamole connection) to make the
             // pod name unique per connection
             String connId = getIdentifier();
             String sanitizedConnId = connId != null ? connId.toLowerCase().replaceAll("[^a-z0-9]", "-") : "default";
+
+            if (isShared) {
+                int sessions = getProperty(environment, K8sVNCProperties.K8S_VNC_SHARED_SESSIONS, 8);
+                if (sessions < 1 || sessions > 99)
+                    throw new GuacamoleServerException("Invalid number of sessions per shared host: " + sessions);
+
+                String hostPrefix = "vnc-shared-" + sanitizedConnId;
+                cluster = clusterPool.resolveShared(apiEndpoint, skipTls, namespace, hostPrefix, cpu, memory);
+                return connectShared(cluster, namespace, hostPrefix, sanitizedConnId, vncPassword, image, cpu,
+                        memory, priorityClass, sessions, proxyConfig, info);
+            }
+
             String podName = "vnc-" + sanitizedUserId + "-" + sanitizedConnId;
             String pvcName = "pvc-" + sanitizedUserId + "-" + sanitizedConnId;
 
+            // Choose the cluster, keeping the user on the one holding their PVC
+            cluster = clusterPool.resolve(apiEndpoint, skipTls, namespace, pvcName, cpu, memory);
+            CoreV1Api api = cluster.getApi();
+            long provisioningStart = System.currentTimeMillis();
+
             // 3. Ensure PVC exists
-            ensurePvcExists(api, namespace, pvcName, pvcSize, podName);
+            V1PersistentVolumeClaim pvc;
+            try {
+                pvc = ensurePvcExists(api, namespace, pvcName, pvcSize, podName);
+            } catch (Exception e) {
+                clusterPool.forget(namespace, pvcName);
+                throw e;
+            }
 
-            // 4. Ensure Pod exists
-            ensurePodExists(api, namespace, podName, pvcName, vncPassword, image, vncPortString, sanitizedUserId, cpu,
-                    memory);
+            // 4. Ensure Pod exists, preferring the zone/node of the PVC and nodes with the image
+            K8sVNCTopologyHints topologyHints = K8sVNCTopologyHints.getInstance();
+            V1Pod pod = ensurePodExists(api, namespace, podName, pvcName, vncPassword, image, vncPortString,
+                    userId, sanitizedUserId, cpu, memory, topologyHints.getAffinity(cluster.getName(), image, pvc),
+                    priorityClass, null);
+            boolean coldStart = pod.getStatus() == null || !"Running".equals(pod.getStatus().getPhase());
 
             // 4. Wait for Pod IP
             String podIp = waitForPodIp(api, namespace, podName);
             logger.info("Pod {} is ready at IP {}. Waiting for VNC port {}...", podName, podIp, vncPort);
 
             // 5. Wait for VNC port to be open
-            boolean portOpen = false;
-            for (int i = 0; i < 30; i++) {
-                try (java.net.Socket socket = new java.net.Socket()) {
-                    socket.connect(new java.net.InetSocketAddress(podIp, vncPort), 1000);
-                    portOpen = true;
-                    break;
-                } catch (java.io.IOException e) {
-                    Thread.sleep(1000);
-                }
-            }
-
-            if (!portOpen)
-                throw new GuacamoleServerException("VNC server on pod " + podName + " failed to start in time.");
+            waitForPort(podIp, vncPort, podName);
 
             logger.info("VNC port {} is open on {}. Connecting...", vncPort, podIp);
+            long provisioningTime = System.currentTimeMillis() - provisioningStart;
+            if (coldStart)
+                cluster.recordProvisioningLatency(provisioningTime);
+
+            // Record on every connect, so pre-warmed and already running pods
+            // keep the PVC's hints current too; this runs in the background
+            topologyHints.recordPlacement(api, cluster.getName(), namespace, podName, pvcName, image);
+
+            // Feed login history and hit-rate metrics for pre-warming. Pods
+            // with their own VNC password are never pre-warmed, as the
+            // password is not persisted.
+            K8sVNCPrewarmer prewarmer = K8sVNCPrewarmer.getInstance();
+            prewarmer.recordProvisioning(api, namespace, pod, coldStart, provisioningTime);
+            if (getParam(connectionConfig, "vnc-password", null) == null)
+                prewarmer.recordConnect(new K8sVNCLoginHistory.PodSpec(podName, pvcName, userId, sanitizedUserId,
+                        namespace, image, cpu, memory, pvcSize, vncPortString, apiEndpoint, skipTls));
 
             // 6. Connect via guacd
             GuacamoleConfiguration config = new GuacamoleConfiguration();
@@ -270,12 +299,106 @@ public class K8sVNCConnection extends DelegatingConnection {
 
         } catch (Exception e) {
             logger.error("Failed to establish Kubernetes VNC connection", e);
+            if (cluster != null && isClusterFailure(e))
+                cluster.recordFailure();
             if (e instanceof GuacamoleException)
                 throw (GuacamoleException) e;
             throw new GuacamoleServerException("Error provisioning or connecting to pod: " + e.getMessage());
         }
     }
 
+    /**
+     * Connects a session to a free display of one of the connection's
+     * multi-session host pods, creating a new host only if all existing ones
+     * are full. The display is returned to the pool when the tunnel closes.
+     */
+    private GuacamoleTunnel connectShared(K8sVNCCluster cluster, String namespace, String hostPrefix,
+            String sanitizedConnId, String password, String image, String cpu, String memory,
+            String priorityClass, int sessions, GuacamoleProxyConfiguration proxyConfig,
+            GuacamoleClientInformation info) throws Exception {
+
+        CoreV1Api api = cluster.getApi();
+
+        // Collect the live host pods of this connection, and the names of
+        // all of them including those still terminating
+        List<String> hosts = new ArrayList<>();
+        List<String> presentHosts = new ArrayList<>();
+        for (V1Pod host : api.listNamespacedPod(namespace)
+                .labelSelector(K8sVNCSharedHosts.HOST_LABEL + "=" + sanitizedConnId).execute().getItems()) {
+            presentHosts.add(host.getMetadata().getName());
+            String phase = host.getStatus() != null ? host.getStatus().getPhase() : null;
+            if (host.getMetadata().getDeletionTimestamp() == null && !"Failed".equals(phase)
+                    && !"Succeeded".equals(phase))
+                hosts.add(host.getMetadata().getName());
+        }
+
+        // Displays the host reports busy are skipped; every display may be
+        // tried once before giving up
+        K8sVNCSharedHosts sharedHosts = K8sVNCSharedHosts.getInstance();
+        String group = cluster.getName() + "/" + namespace + "/" + hostPrefix;
+        for (int attempt = 0; attempt <= sessions; attempt++) {
+            K8sVNCSharedHosts.Slot slot = sharedHosts.acquire(group, hostPrefix, hosts, presentHosts, sessions,
+                    api, namespace);
+            try {
+                String hostName = slot.getHostName();
+                long provisioningStart = System.currentTimeMillis();
+                boolean coldStart = !hosts.contains(hostName);
+                K8sVNCTopologyHints topologyHints = K8sVNCTopologyHints.getInstance();
+                if (coldStart) {
+                    ensureSharedHostExists(api, namespace, hostName, sanitizedConnId, password, image, sessions, cpu,
+                            memory, topologyHints.getAffinity(cluster.getName(), image, null), priorityClass);
+                    hosts.add(hostName);
+                }
+
+                String podIp = waitForPodIp(api, namespace, hostName);
+                Map<Integer, String> status = coldStart
+                        ? waitForDisplayStatus(podIp, slot.getDisplay(), hostName)
+                        : K8sVNCSharedHosts.readStatus(podIp);
+                if (status != null && !"free".equals(status.get(slot.getDisplay()))) {
+                    slot.reject(status);
+                    continue;
+                }
+
+                logger.info("Shared host {} is ready at IP {}. Waiting for display :{}...", hostName, podIp,
+                        slot.getDisplay());
+                waitForPort(podIp, slot.getPort(), hostName);
+
+                if (coldStart) {
+                    cluster.recordProvisioningLatency(System.currentTimeMillis() - provisioningStart);
+                    topologyHints.recordPlacement(api, cluster.getName(), namespace, hostName, null, image);
+                }
+
+                GuacamoleConfiguration config = new GuacamoleConfiguration();
+                config.setProtocol("vnc");
+                config.setParameter("hostname", podIp);
+                config.setParameter("port", Integer.toString(slot.getPort()));
+                config.setParameter("password", password);
+
+                GuacamoleSocket socket = new ConfiguredGuacamoleSocket(
+                        new InetGuacamoleSocket(proxyConfig.getHostname(), proxyConfig.getPort()),
+                        config,
+                        info);
+
+                return new SimpleGuacamoleTunnel(socket) {
+                    @Override
+                    public void close() throws GuacamoleException {
+                        try {
+                            super.close();
+                        } finally {
+                            slot.release();
+                        }
+                    }
+                };
+
+            } catch (Exception e) {
+                slot.release();
+                throw e;
+            }
+        }
+
+        throw new GuacamoleServerException("No free display found on the shared hosts of " + sanitizedConnId + ".");
+    }
+
     private String getParam(GuacamoleConfiguration config, String name, String defaultValue) {
         if (config == null)
             return defaultValue;
@@ -283,7 +406,26 @@ public class K8sVNCConnection extends DelegatingConnection {
         return (val != null && !val.isEmpty()) ? val : defaultValue;
     }
 
-    private <T> T getProperty(org.apache.guacamole.environment.Environment environment,
+    /**
+     * Reads a Guacamole property, falling back to the environment variable of
+     * the same name in upper case with dashes replaced by underscores.
+     *
+     * @param environment
+     *     The Guacamole environment to read the property from.
+     *
+     * @param prop
+     *     The property to read.
+     *
+     * @param defaultValue
+     *     The value to return if the property is set in neither place.
+     *
+     * @return
+     *     The value of the property, or the default value.
+     *
+     * @throws GuacamoleException
+     *     If the property value cannot be parsed.
+     */
+    public static <T> T getProperty(org.apache.guacamole.environment.Environment environment,
             org.apache.guacamole.properties.GuacamoleProperty<T> prop, T defaultValue)
             throws GuacamoleException {
         T val = environment.getProperty(prop);
@@ -302,8 +444,8 @@ public class K8sVNCConnection extends DelegatingConnection {
         return defaultValue;
     }
 
-    private void ensurePvcExists(CoreV1Api api, String namespace, String pvcName, String pvcSize, String podName)
-            throws Exception {
+    private static V1PersistentVolumeClaim ensurePvcExists(CoreV1Api api, String namespace, String pvcName, String pvcSize,
+            String podName) throws Exception {
         try {
             V1PersistentVolumeClaim pvc = api.readNamespacedPersistentVolumeClaim(pvcName, namespace).execute();
 
@@ -342,7 +484,7 @@ public class K8sVNCConnection extends DelegatingConnection {
                 try {
                     // 2. Resize using REPLACE (PUT) to avoid 415 Media Type issues
                     pvc.getSpec().getResources().setRequests(Collections.singletonMap("storage", newSize));
-                    api.replaceNamespacedPersistentVolumeClaim(pvcName, namespace, pvc).execute();
+                    pvc = api.replaceNamespacedPersistentVolumeClaim(pvcName, namespace, pvc).execute();
                 } catch (io.kubernetes.client.openapi.ApiException e) {
                     if (e.getCode() == 422 || e.getCode() == 403) {
                         logger.warn(
@@ -354,6 +496,8 @@ public class K8sVNCConnection extends DelegatingConnection {
                 }
             }
 
+            return pvc;
+
         } catch (io.kubernetes.client.openapi.ApiException e) {
             if (e.getCode() == 404) {
                 V1PersistentVolumeClaim newPvc = new V1PersistentVolumeClaim()
@@ -362,15 +506,16 @@ public class K8sVNCConnection extends DelegatingConnection {
                                 .accessModes(Collections.singletonList("ReadWriteOnce"))
                                 .resources(new V1VolumeResourceRequirements().requests(Collections
                                         .singletonMap("storage", new io.kubernetes.client.custom.Quantity(pvcSize)))));
-                api.createNamespacedPersistentVolumeClaim(namespace, newPvc).execute();
+                return api.createNamespacedPersistentVolumeClaim(namespace, newPvc).execute();
             } else {
                 throw e;
             }
         }
     }
 
-    private V1Pod ensurePodExists(CoreV1Api api, String namespace, String podName, String pvcName,
-            String password, String image, String vncPort, String containerUser, String cpu, String memory)
+    static V1Pod ensurePodExists(CoreV1Api api, String namespace, String podName, String pvcName,
+            String password, String image, String vncPort, String userId, String containerUser, String cpu,
+            String memory, V1Affinity affinity, String priorityClass, Map<String, String> annotations)
             throws Exception {
         try {
             V1Pod existingPod = api.readNamespacedPod(podName, namespace).execute();
@@ -438,15 +583,23 @@ public class K8sVNCConnection extends DelegatingConnection {
             resources.putLimitsItem("memory", new io.kubernetes.client.custom.Quantity(memory));
         }
 
+        Map<String, String> labels = new HashMap<>();
+        labels.put("user", userId);
+        labels.put(K8sVNCTopologyHints.APP_LABEL, K8sVNCTopologyHints.APP_LABEL_VALUE);
+
         V1Pod pod = new V1Pod()
                 .apiVersion("v1")
                 .kind("Pod")
                 .metadata(new V1ObjectMeta().name(podName)
-                        .labels(Collections.singletonMap("user", userId)))
+                        .labels(labels)
+                        .annotations(annotations))
                 .spec(new V1PodSpec()
                         .restartPolicy("Always")
                         .overhead(null)
                         .runtimeClassName(null)
+                        .priorityClassName(priorityClass)
+                        .affinity(affinity)
+                        .topologySpreadConstraints(K8sVNCTopologyHints.getInstance().getSpreadConstraints())
                         .securityContext(new V1PodSecurityContext()
                                 .fsGroup(1000L))
                         .containers(Collections.singletonList(
@@ -475,18 +628,158 @@ public class K8sVNCConnection extends DelegatingConnection {
         return api.createNamespacedPod(namespace, pod).execute();
     }
 
+    /**
+     * Creates a multi-session host pod running one Xvnc instance per
+     * display. Hosts have no PVC; sessions get a fresh home directory which
+     * is wiped when the user disconnects.
+     */
+    private void ensureSharedHostExists(CoreV1Api api, String namespace, String hostName, String sanitizedConnId,
+            String password, String image, int sessions, String cpu, String memory, V1Affinity affinity,
+            String priorityClass) throws Exception {
+
+        logger.info("Creating shared host {} with image {} ({} sessions, CPU: {}, Mem: {})", hostName, image,
+                sessions, cpu, memory);
+
+        V1ResourceRequirements resources = new V1ResourceRequirements();
+        if (cpu != null && !cpu.isEmpty()) {
+            resources.putRequestsItem("cpu", new io.kubernetes.client.custom.Quantity(cpu));
+            resources.putLimitsItem("cpu", new io.kubernetes.client.custom.Quantity(cpu));
+        }
+        if (memory != null && !memory.isEmpty()) {
+            resources.putRequestsItem("memory", new io.kubernetes.client.custom.Quantity(memory));
+            resources.putLimitsItem("memory", new io.kubernetes.client.custom.Quantity(memory));
+        }
+
+        List<V1ContainerPort> ports = new ArrayList<>();
+        for (int display = 1; display <= sessions; display++)
+            ports.add(new V1ContainerPort().containerPort(5900 + display));
+
+        Map<String, String> labels = new HashMap<>();
+        labels.put(K8sVNCSharedHosts.HOST_LABEL, sanitizedConnId);
+        labels.put(K8sVNCTopologyHints.APP_LABEL, K8sVNCTopologyHints.APP_LABEL_VALUE);
+
+        V1Pod pod = new V1Pod()
+                .apiVersion("v1")
+                .kind("Pod")
+                .metadata(new V1ObjectMeta().name(hostName)
+                        .labels(labels))
+                .spec(new V1PodSpec()
+                        .restartPolicy("Always")
+                        .priorityClassName(priorityClass)
+                        .affinity(affinity)
+                        .topologySpreadConstraints(K8sVNCTopologyHints.getInstance().getSpreadConstraints())
+                        .containers(Collections.singletonList(
+                                new V1Container()
+                                        .name("vnc-container")
+                                        .image(image)
+                                        .imagePullPolicy("IfNotPresent")
+                                        .resources(resources)
+                                        .ports(ports)
+                                        .env(java.util.Arrays.asList(
+                                                new V1EnvVar().name("VNC_PW").value(password),
+                                                new V1EnvVar().name("VNC_PASSWORD").value(password),
+                                                new V1EnvVar().name("VNC_USER").value("kiosk"),
+                                                new V1EnvVar().name("VNC_UID").value("1000"),
+                                                new V1EnvVar().name("VNC_GID").value("1000"),
+                                                new V1EnvVar().name("VNC_SESSIONS").value(Integer.toString(sessions)),
+                                                new V1EnvVar().name("VNC_RESOLUTION").value("1280x800"),
+                                                new V1EnvVar().name("VNC_COL_DEPTH").value("24"))))));
+
+        try {
+            api.createNamespacedPod(namespace, pod).execute();
+        } catch (io.kubernetes.client.openapi.ApiException e) {
+            // Another session may have created the same host concurrently,
+            // but a terminating pod of that name must not be used
+            if (e.getCode() != 409)
+                throw e;
+            V1Pod existing = api.readNamespacedPod(hostName, namespace).execute();
+            if (existing.getMetadata().getDeletionTimestamp() != null)
+                throw new GuacamoleServerException("Shared host " + hostName + " is still terminating.");
+        }
+    }
+
+    private void waitForPort(String podIp, int port, String podName) throws Exception {
+        for (int i = 0; i < 30; i++) {
+            try (java.net.Socket socket = new java.net.Socket()) {
+                socket.connect(new java.net.InetSocketAddress(podIp, port), 1000);
+                return;
+            } catch (java.io.IOException e) {
+                Thread.sleep(1000);
+            }
+        }
+        throw new GuacamoleServerException("VNC server on pod " + podName + " failed to start in time.");
+    }
+
+    /**
+     * Waits for a newly created shared host to finish setting up a display.
+     * Displays of a new host report "resetting" until their session is
+     * ready, which must not be mistaken for the display being taken.
+     *
+     * @return
+     *     The display states reported by the host once the display is no
+     *     longer resetting, or null if the host does not report them.
+     */
+    private Map<Integer, String> waitForDisplayStatus(String podIp, int display, String hostName)
+            throws Exception {
+        for (int i = 0; i < 60; i++) {
+            Map<Integer, String> status = K8sVNCSharedHosts.readStatus(podIp);
+
+            // Images without the status port never report; do not wait long for them
+            if (status == null && i >= 5)
+                return null;
+            if (status != null && !"resetting".equals(status.get(display)))
+                return status;
+            Thread.sleep(1000);
+        }
+        throw new GuacamoleServerException("Display :" + display + " on shared host " + hostName
+                + " failed to start in time.");
+    }
+
     private String waitForPodIp(CoreV1Api api, String namespace, String podName) throws Exception {
+        V1Pod pod = null;
         for (int i = 0; i < 60; i++) {
-            V1Pod pod = api.readNamespacedPod(podName, namespace).execute();
+            pod = api.readNamespacedPod(podName, namespace).execute();
             String ip = pod.getStatus().getPodIP();
             if (ip != null && !ip.isEmpty() && "Running".equals(pod.getStatus().getPhase())) {
                 return ip;
             }
             Thread.sleep(2000);
         }
+
+        // A pod which never got a node points at the cluster, not the image
+        if (pod != null && (pod.getSpec() == null || pod.getSpec().getNodeName() == null))
+            throw new PodSchedulingException("Timeout waiting for Pod " + podName + " to be scheduled");
         throw new Exception("Timeout waiting for Pod IP");
     }
 
+    /**
+     * Returns whether a failed connect indicates a problem with the cluster
+     * itself (unreachable or overloaded API server, or pods which cannot be
+     * scheduled), as opposed to a problem specific to this connection such
+     * as a broken image or a failing guacd.
+     */
+    private static boolean isClusterFailure(Exception e) {
+        if (e instanceof PodSchedulingException)
+            return true;
+        if (e instanceof io.kubernetes.client.openapi.ApiException) {
+            int code = ((io.kubernetes.client.openapi.ApiException) e).getCode();
+            return code == 0 || code == 429 || code >= 500;
+        }
+        return false;
+    }
+
+    /**
+     * Thrown when a pod stays unscheduled for longer than the provisioning
+     * timeout.
+     */
+    private static class PodSchedulingException extends Exception {
+
+        PodSchedulingException(String message) {
+            super(message);
+        }
+
+    }
+
     @Override
     public int getActiveConnections() {
         return 0;
@@ -0,0 +1,405 @@
+package org.apache.guacamole.auth.k8s.connection;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Locally persisted history of when each user/connection pair connected,
+ * keyed by pod name ("vnc-&lt;user&gt;-&lt;conn&gt;"), together with the
+ * parameters needed to provision that pod without the user being present.
+ * The history is stored as a properties file in GUACAMOLE_HOME.
+ */
+public class K8sVNCLoginHistory {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCLoginHistory.class);
+
+    /**
+     * How far back connects are considered, in seconds.
+     */
+    private static final long MAX_AGE = 28L * 24 * 3600;
+
+    /**
+     * The maximum number of connect timestamps kept per pod.
+     */
+    private static final int MAX_ENTRIES = 60;
+
+    /**
+     * How far apart, in minutes of the day, connects may be and still count
+     * as the same habitual login time.
+     */
+    private static final int WINDOW = 20;
+
+    /**
+     * The number of distinct days a login time must have been seen on before
+     * it is predicted.
+     */
+    private static final int MIN_DAYS = 3;
+
+    private final File file;
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Creates a history backed by the given file, loading any existing
+     * contents.
+     *
+     * @param file
+     *     The properties file the history is persisted to.
+     */
+    public K8sVNCLoginHistory(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Records a connect, storing the parameters the pod was provisioned with.
+     *
+     * @param spec
+     *     The provisioning parameters of the pod.
+     *
+     * @param time
+     *     The time of the connect, in milliseconds since the epoch.
+     */
+    public synchronized void record(PodSpec spec, long time) {
+        Entry entry = entries.computeIfAbsent(spec.podName, key -> new Entry());
+        entry.spec = spec;
+        entry.times.add(time / 1000);
+        long cutoff = time / 1000 - MAX_AGE;
+        entry.times.removeIf(t -> t < cutoff);
+        while (entry.times.size() > MAX_ENTRIES)
+            entry.times.remove(0);
+        save();
+    }
+
+    /**
+     * Discards connects older than MAX_AGE, and pods with no connects left,
+     * so users who stopped logging in are no longer predicted.
+     *
+     * @param time
+     *     The current time, in milliseconds since the epoch.
+     */
+    public synchronized void prune(long time) {
+        long cutoff = time / 1000 - MAX_AGE;
+        boolean changed = false;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            changed |= entry.times.removeIf(t -> t < cutoff);
+            if (entry.times.isEmpty()) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed)
+            save();
+    }
+
+    /**
+     * Returns the provisioning parameters of every pod in the history.
+     *
+     * @return
+     *     The recorded pod parameters.
+     */
+    public synchronized List<PodSpec> getPods() {
+        List<PodSpec> pods = new ArrayList<>();
+        for (Entry entry : entries.values())
+            pods.add(entry.spec);
+        return pods;
+    }
+
+    /**
+     * Returns the time of the most recent connect to the given pod.
+     *
+     * @param podName
+     *     The name of the pod.
+     *
+     * @return
+     *     The time of the last connect in milliseconds since the epoch, or 0
+     *     if none is known.
+     */
+    public synchronized long getLastConnect(String podName) {
+        Entry entry = entries.get(podName);
+        if (entry == null || entry.times.isEmpty())
+            return 0;
+        return entry.times.get(entry.times.size() - 1) * 1000;
+    }
+
+    /**
+     * Predicts the times the user is likely to connect to the given pod on
+     * the given day. A time is predicted if connects around that time of day
+     * were seen on at least MIN_DAYS distinct days of the same kind (weekday
+     * or weekend) within MAX_AGE before that day.
+     *
+     * @param podName
+     *     The name of the pod.
+     *
+     * @param day
+     *     The day to predict logins for.
+     *
+     * @return
+     *     The predicted login times in milliseconds since the epoch, in
+     *     ascending order.
+     */
+    public synchronized List<Long> predict(String podName, LocalDate day) {
+        Entry entry = entries.get(podName);
+        if (entry == null)
+            return Collections.emptyList();
+
+        boolean weekend = isWeekend(day.getDayOfWeek());
+        long cutoff = day.atStartOfDay(zone).toEpochSecond() - MAX_AGE;
+        List<ZonedDateTime> logins = new ArrayList<>();
+        for (long t : entry.times) {
+            if (t < cutoff)
+                continue;
+            ZonedDateTime login = Instant.ofEpochSecond(t).atZone(zone);
+            if (isWeekend(login.getDayOfWeek()) == weekend && login.toLocalDate().isBefore(day))
+                logins.add(login);
+        }
+
+        List<Integer> minutes = new ArrayList<>();
+        for (ZonedDateTime login : logins) {
+            int minute = login.getHour() * 60 + login.getMinute();
+
+            // Gather logins around this time of day, counting distinct days
+            List<Integer> around = new ArrayList<>();
+            Set<LocalDate> days = new HashSet<>();
+            for (ZonedDateTime other : logins) {
+                int otherMinute = other.getHour() * 60 + other.getMinute();
+                if (Math.abs(otherMinute - minute) <= WINDOW) {
+                    around.add(otherMinute);
+                    days.add(other.toLocalDate());
+                }
+            }
+            if (days.size() < MIN_DAYS)
+                continue;
+
+            Collections.sort(around);
+            int median = around.get(around.size() / 2);
+            if (minutes.stream().noneMatch(m -> Math.abs(m - median) <= WINDOW))
+                minutes.add(median);
+        }
+
+        List<Long> predictions = new ArrayList<>();
+        for (int minute : minutes)
+            predictions.add(day.atStartOfDay(zone).plusMinutes(minute).toInstant().toEpochMilli());
+        Collections.sort(predictions);
+        return predictions;
+    }
+
+    private static boolean isWeekend(DayOfWeek day) {
+        return day == DayOfWeek.SATURDAY || day == DayOfWeek.SUNDAY;
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.warn("Unable to read login history {}: {}", file, e.getMessage());
+            return;
+        }
+
+        for (String name : properties.stringPropertyNames()) {
+            if (!name.endsWith(".times"))
+                continue;
+            String podName = name.substring(0, name.length() - ".times".length());
+            PodSpec spec = PodSpec.load(podName, properties);
+            if (spec == null)
+                continue;
+
+            Entry entry = new Entry();
+            entry.spec = spec;
+            for (String time : properties.getProperty(name).split(",")) {
+                try {
+                    entry.times.add(Long.parseLong(time.trim()));
+                } catch (NumberFormatException e) {
+                    logger.debug("Ignoring malformed login time \"{}\" for {}", time, podName);
+                }
+            }
+            Collections.sort(entry.times);
+            entries.put(podName, entry);
+        }
+        prune(System.currentTimeMillis());
+        logger.info("Loaded login history of {} pods from {}", entries.size(), file);
+    }
+
+    private void save() {
+        Properties properties = new Properties();
+        for (Entry entry : entries.values()) {
+            entry.spec.store(properties);
+            StringBuilder times = new StringBuilder();
+            for (long time : entry.times) {
+                if (times.length() > 0)
+                    times.append(',');
+                times.append(time);
+            }
+            properties.setProperty(entry.spec.podName + ".times", times.toString());
+        }
+
+        // Write to a temporary file first so a crash never leaves it truncated
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, "Kubernetes VNC login history");
+        } catch (IOException e) {
+            logger.warn("Unable to write login history {}: {}", file, e.getMessage());
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to replace login history {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private PodSpec spec;
+        private final List<Long> times = new ArrayList<>();
+    }
+
+    /**
+     * The parameters a dedicated desktop pod was provisioned with. The VNC
+     * password is never stored; only pods using the global password are
+     * recorded.
+     */
+    public static class PodSpec {
+
+        private final String podName;
+        private final String pvcName;
+        private final String userId;
+        private final String containerUser;
+        private final String namespace;
+        private final String image;
+        private final String cpu;
+        private final String memory;
+        private final String pvcSize;
+        private final String vncPort;
+        private final String endpoint;
+        private final boolean skipTls;
+
+        public PodSpec(String podName, String pvcName, String userId, String containerUser, String namespace,
+                String image, String cpu, String memory, String pvcSize, String vncPort, String endpoint,
+                boolean skipTls) {
+            this.podName = podName;
+            this.pvcName = pvcName;
+            this.userId = userId;
+            this.containerUser = containerUser;
+            this.namespace = namespace;
+            this.image = image;
+            this.cpu = cpu;
+            this.memory = memory;
+            this.pvcSize = pvcSize;
+            this.vncPort = vncPort;
+            this.endpoint = endpoint;
+            this.skipTls = skipTls;
+        }
+
+        public String getPodName() {
+            return podName;
+        }
+
+        public String getPvcName() {
+            return pvcName;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getContainerUser() {
+            return containerUser;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        public String getCpu() {
+            return cpu;
+        }
+
+        public String getMemory() {
+            return memory;
+        }
+
+        public String getPvcSize() {
+            return pvcSize;
+        }
+
+        public String getVncPort() {
+            return vncPort;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public boolean isSkipTls() {
+            return skipTls;
+        }
+
+        private void store(Properties properties) {
+            String prefix = podName + ".";
+            properties.setProperty(prefix + "pvc", pvcName);
+            properties.setProperty(prefix + "user", userId);
+            properties.setProperty(prefix + "container-user", containerUser);
+            properties.setProperty(prefix + "namespace", namespace);
+            properties.setProperty(prefix + "image", image);
+            properties.setProperty(prefix + "cpu", cpu);
+            properties.setProperty(prefix + "memory", memory);
+            properties.setProperty(prefix + "pvc-size", pvcSize);
+            properties.setProperty(prefix + "vnc-port", vncPort);
+            if (endpoint != null)
+                properties.setProperty(prefix + "endpoint", endpoint);
+            properties.setProperty(prefix + "skip-tls-verify", Boolean.toString(skipTls));
+        }
+
+        private static PodSpec load(String podName, Properties properties) {
+            String prefix = podName + ".";
+            String pvcName = properties.getProperty(prefix + "pvc");
+            String userId = properties.getProperty(prefix + "user");
+            String containerUser = properties.getProperty(prefix + "container-user");
+            String namespace = properties.getProperty(prefix + "namespace");
+            String image = properties.getProperty(prefix + "image");
+            if (pvcName == null || userId == null || containerUser == null || namespace == null || image == null)
+                return null;
+            return new PodSpec(podName, pvcName, userId, containerUser, namespace, image,
+                    properties.getProperty(prefix + "cpu", "1"),
+                    properties.getProperty(prefix + "memory", "2Gi"),
+                    properties.getProperty(prefix + "pvc-size", "1Gi"),
+                    properties.getProperty(prefix + "vnc-port", "5901"),
+                    properties.getProperty(prefix + "endpoint"),
+                    "true".equalsIgnoreCase(properties.getProperty(prefix + "skip-tls-verify")));
+        }
+
+    }
+
+}
@@ -0,0 +1,434 @@
+package org.apache.guacamole.auth.k8s.connection;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1DeleteOptions;
+import io.kubernetes.client.openapi.models.V1PersistentVolumeClaim;
+import io.kubernetes.client.openapi.models.V1Pod;
+import io.kubernetes.client.openapi.models.V1Preconditions;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.guacamole.GuacamoleException;
+import org.apache.guacamole.auth.k8s.K8sVNCProperties;
+import org.apache.guacamole.auth.k8s.cluster.K8sVNCCluster;
+import org.apache.guacamole.auth.k8s.cluster.K8sVNCClusterPool;
+import org.apache.guacamole.environment.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Starts users' dedicated pods shortly before they habitually log in, so
+ * the cold start is paid before the user arrives. Predictions are based on
+ * the locally persisted K8sVNCLoginHistory. Pods started this way carry an
+ * annotation holding the time they expire; the first connect removes it,
+ * and pods still carrying it once expired are deleted again.
+ */
+public class K8sVNCPrewarmer {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCPrewarmer.class);
+
+    private static final K8sVNCPrewarmer instance = new K8sVNCPrewarmer();
+
+    /**
+     * Annotation marking a pod which was pre-warmed and not yet connected
+     * to. Its value is the time the pod expires, in milliseconds since the
+     * epoch.
+     */
+    static final String PREWARM_ANNOTATION = "guacamole.apache.org/k8s-vnc-prewarmed";
+
+    /**
+     * Name of the history file within GUACAMOLE_HOME.
+     */
+    private static final String HISTORY_FILE = "k8s-vnc-login-history.properties";
+
+    /**
+     * How often predictions are checked, in seconds.
+     */
+    private static final long TICK = 60;
+
+    /**
+     * The number of ticks between metric reports.
+     */
+    private static final int REPORT_INTERVAL = 60;
+
+    /**
+     * Smoothing factor of the cold-start latency moving average.
+     */
+    private static final double LATENCY_ALPHA = 0.3;
+
+    /**
+     * How often claiming a pod is attempted when it is modified concurrently.
+     */
+    private static final int CLAIM_ATTEMPTS = 5;
+
+    private Environment environment;
+    private K8sVNCLoginHistory history;
+    private ScheduledExecutorService executor;
+    private long leadTime;
+    private long expiry;
+    private int ticks = 0;
+
+    /**
+     * The predicted login each pod was last considered for, so every
+     * prediction is acted on at most once.
+     */
+    private final Map<String, Long> handled = new ConcurrentHashMap<>();
+
+    /**
+     * Expiry time of each pre-warmed pod not yet known to be connected to,
+     * keyed by pod name.
+     */
+    private final Map<String, Long> outstanding = new ConcurrentHashMap<>();
+
+    private final AtomicLong prewarms = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong readyHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong wasted = new AtomicLong();
+    private final AtomicLong savedMillis = new AtomicLong();
+    private volatile double coldLatency = -1;
+
+    private K8sVNCPrewarmer() {
+    }
+
+    public static K8sVNCPrewarmer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts the background scheduler if "k8s-vnc-prewarm-lead-time" is
+     * configured. Calling this more than once has no further effect.
+     *
+     * @param environment
+     *     The Guacamole environment to read configuration from.
+     *
+     * @throws GuacamoleException
+     *     If the configuration cannot be read.
+     */
+    public synchronized void start(Environment environment) throws GuacamoleException {
+        if (executor != null)
+            return;
+
+        Integer lead = K8sVNCConnection.getProperty(environment, K8sVNCProperties.K8S_VNC_PREWARM_LEAD_TIME, null);
+        if (lead == null || lead <= 0)
+            return;
+        Integer expiryMinutes = K8sVNCConnection.getProperty(environment,
+                K8sVNCProperties.K8S_VNC_PREWARM_EXPIRY, 60);
+
+        this.environment = environment;
+        this.leadTime = TimeUnit.MINUTES.toMillis(lead);
+        this.expiry = TimeUnit.MINUTES.toMillis(expiryMinutes);
+        this.history = new K8sVNCLoginHistory(new File(environment.getGuacamoleHome(), HISTORY_FILE));
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "k8s-vnc-prewarm");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::recoverOutstanding);
+        executor.scheduleWithFixedDelay(this::tick, TICK, TICK, TimeUnit.SECONDS);
+        logger.info("Pod pre-warming enabled ({} min lead time, {} min expiry).", lead, expiryMinutes);
+    }
+
+    /**
+     * Stops the background scheduler and logs the final metrics.
+     */
+    public synchronized void shutdown() {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        executor = null;
+        report();
+    }
+
+    /**
+     * Records a connect to a dedicated pod in the login history. Does
+     * nothing if pre-warming is disabled.
+     *
+     * @param spec
+     *     The parameters the pod was provisioned with.
+     */
+    public void recordConnect(K8sVNCLoginHistory.PodSpec spec) {
+        K8sVNCLoginHistory current;
+        synchronized (this) {
+            current = history;
+        }
+        if (current != null)
+            current.record(spec, System.currentTimeMillis());
+    }
+
+    /**
+     * Records how long a connect waited for its pod, claiming the pod if it
+     * was pre-warmed so that it no longer expires.
+     *
+     * @param api
+     *     The API of the cluster the pod runs on.
+     *
+     * @param namespace
+     *     The namespace of the pod.
+     *
+     * @param pod
+     *     The pod as returned when it was ensured to exist.
+     *
+     * @param coldStart
+     *     Whether the pod was not yet running when the connect began.
+     *
+     * @param latency
+     *     How long the connect waited for the pod, in milliseconds.
+     */
+    public void recordProvisioning(CoreV1Api api, String namespace, V1Pod pod, boolean coldStart, long latency) {
+        String podName = pod.getMetadata().getName();
+        Map<String, String> annotations = pod.getMetadata().getAnnotations();
+
+        if (annotations == null || !annotations.containsKey(PREWARM_ANNOTATION)) {
+            if (coldStart) {
+                misses.incrementAndGet();
+                double previous = coldLatency;
+                coldLatency = previous < 0 ? latency : previous + LATENCY_ALPHA * (latency - previous);
+            }
+            return;
+        }
+
+        hits.incrementAndGet();
+        if (!coldStart)
+            readyHits.incrementAndGet();
+        if (coldLatency > 0)
+            savedMillis.addAndGet(Math.max(0, (long) coldLatency - latency));
+        logger.info("Connected to pre-warmed pod {} after {} ms.", podName, latency);
+
+        // Claim the pod so it is no longer subject to expiry. If that fails,
+        // expire() claims it later, as the connect is in the history.
+        if (claim(api, namespace, podName))
+            outstanding.remove(podName);
+    }
+
+    /**
+     * Removes the pre-warm annotation from a pod, retrying if the pod is
+     * modified concurrently.
+     *
+     * @return
+     *     Whether the pod no longer carries the annotation.
+     */
+    private boolean claim(CoreV1Api api, String namespace, String podName) {
+        for (int attempt = 0; attempt < CLAIM_ATTEMPTS; attempt++) {
+            try {
+                V1Pod current = api.readNamespacedPod(podName, namespace).execute();
+                Map<String, String> remaining = current.getMetadata().getAnnotations() != null
+                        ? new HashMap<>(current.getMetadata().getAnnotations()) : new HashMap<>();
+                if (remaining.remove(PREWARM_ANNOTATION) == null)
+                    return true;
+                current.getMetadata().setAnnotations(remaining);
+                api.replaceNamespacedPod(podName, namespace, current).execute();
+                return true;
+            } catch (ApiException e) {
+                if (e.getCode() == 404)
+                    return true;
+                if (e.getCode() != 409) {
+                    logger.warn("Unable to claim pre-warmed pod {} (HTTP {}): {}", podName, e.getCode(),
+                            e.getMessage());
+                    return false;
+                }
+            }
+        }
+        logger.warn("Unable to claim pre-warmed pod {}: it kept changing.", podName);
+        return false;
+    }
+
+    /**
+     * Re-discovers pre-warmed pods not yet connected to, e.g. after a restart
+     * of Guacamole, so they still expire.
+     */
+    private void recoverOutstanding() {
+        for (K8sVNCLoginHistory.PodSpec spec : history.getPods()) {
+            try {
+                V1Pod pod = resolveApi(spec).readNamespacedPod(spec.getPodName(), spec.getNamespace()).execute();
+                Map<String, String> annotations = pod.getMetadata().getAnnotations();
+                if (annotations != null && annotations.containsKey(PREWARM_ANNOTATION))
+                    outstanding.put(spec.getPodName(), Long.parseLong(annotations.get(PREWARM_ANNOTATION)));
+            } catch (ApiException e) {
+                if (e.getCode() != 404)
+                    logger.debug("Unable to check pod {} (HTTP {})", spec.getPodName(), e.getCode());
+            } catch (GuacamoleException | NumberFormatException e) {
+                logger.debug("Unable to check pod {}: {}", spec.getPodName(), e.getMessage());
+            }
+        }
+    }
+
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            history.prune(now);
+
+            // Logins shortly after midnight must be pre-warmed the day before
+            List<LocalDate> days = new ArrayList<>();
+            days.add(LocalDate.now());
+            LocalDate leadEnd = Instant.ofEpochMilli(now + leadTime).atZone(ZoneId.systemDefault()).toLocalDate();
+            if (leadEnd.isAfter(days.get(0)))
+                days.add(leadEnd);
+
+            for (K8sVNCLoginHistory.PodSpec spec : history.getPods()) {
+                String podName = spec.getPodName();
+                List<Long> predictions = new ArrayList<>();
+                for (LocalDate day : days)
+                    predictions.addAll(history.predict(podName, day));
+                for (long predicted : predictions) {
+                    long start = predicted - leadTime;
+                    if (now < start || now >= predicted || handled.getOrDefault(podName, 0L) >= predicted)
+                        continue;
+                    handled.put(podName, predicted);
+
+                    // The user connected already, so the pod is up anyway
+                    if (history.getLastConnect(podName) >= start)
+                        continue;
+
+                    prewarm(spec, predicted);
+                }
+            }
+
+            expire(now);
+
+            if (++ticks % REPORT_INTERVAL == 0)
+                report();
+
+        } catch (Exception e) {
+            logger.warn("Pre-warming check failed: {}", e.getMessage());
+            logger.debug("Pre-warming check failed.", e);
+        }
+    }
+
+    private void prewarm(K8sVNCLoginHistory.PodSpec spec, long predicted) {
+        String podName = spec.getPodName();
+        try {
+            String password = K8sVNCConnection.getProperty(environment, K8sVNCProperties.K8S_VNC_PASSWORD, null);
+            if (password == null || password.isEmpty())
+                return;
+            String priorityClass = K8sVNCConnection.getProperty(environment,
+                    K8sVNCProperties.K8S_VNC_PRIORITY_CLASS, null);
+
+            K8sVNCCluster cluster = K8sVNCClusterPool.getInstance(environment).resolve(spec.getEndpoint(),
+                    spec.isSkipTls(), spec.getNamespace(), spec.getPvcName(), spec.getCpu(), spec.getMemory());
+            CoreV1Api api = cluster.getApi();
+
+            try {
+                api.readNamespacedPod(podName, spec.getNamespace()).execute();
+                logger.debug("Pod {} is already running. Nothing to pre-warm.", podName);
+                return;
+            } catch (ApiException e) {
+                if (e.getCode() != 404)
+                    throw e;
+            }
+
+            // Only start pods for home directories which still exist; a
+            // deleted PVC means the user was offboarded or wiped
+            V1PersistentVolumeClaim pvc;
+            try {
+                pvc = api.readNamespacedPersistentVolumeClaim(spec.getPvcName(), spec.getNamespace()).execute();
+            } catch (ApiException e) {
+                if (e.getCode() != 404)
+                    throw e;
+                logger.info("PVC {} no longer exists. Not pre-warming pod {}.", spec.getPvcName(), podName);
+                K8sVNCClusterPool.getInstance(environment).forget(spec.getNamespace(), spec.getPvcName());
+                return;
+            }
+
+            logger.info("Pre-warming pod {} for predicted login at {}.", podName,
+                    java.time.Instant.ofEpochMilli(predicted));
+
+            long expiresAt = predicted + expiry;
+            K8sVNCConnection.ensurePodExists(api, spec.getNamespace(), podName, spec.getPvcName(), password,
+                    spec.getImage(), spec.getVncPort(), spec.getUserId(), spec.getContainerUser(), spec.getCpu(),
+                    spec.getMemory(),
+                    K8sVNCTopologyHints.getInstance().getAffinity(cluster.getName(), spec.getImage(), pvc),
+                    priorityClass, Collections.singletonMap(PREWARM_ANNOTATION, Long.toString(expiresAt)));
+
+            outstanding.put(podName, expiresAt);
+            prewarms.incrementAndGet();
+
+        } catch (Exception e) {
+            logger.warn("Unable to pre-warm pod {}: {}", podName, e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes pre-warmed pods which were not connected to before they
+     * expired.
+     */
+    private void expire(long now) {
+        Map<String, K8sVNCLoginHistory.PodSpec> specs = new HashMap<>();
+        for (K8sVNCLoginHistory.PodSpec spec : history.getPods())
+            specs.put(spec.getPodName(), spec);
+
+        for (Map.Entry<String, Long> entry : outstanding.entrySet()) {
+            if (now < entry.getValue())
+                continue;
+
+            String podName = entry.getKey();
+            outstanding.remove(podName);
+            K8sVNCLoginHistory.PodSpec spec = specs.get(podName);
+            if (spec == null)
+                continue;
+
+            try {
+                CoreV1Api api = resolveApi(spec);
+                V1Pod pod = api.readNamespacedPod(podName, spec.getNamespace()).execute();
+                Map<String, String> annotations = pod.getMetadata().getAnnotations();
+                if (annotations == null || !annotations.containsKey(PREWARM_ANNOTATION))
+                    continue;
+
+                // The user connected but claiming failed; claim it now instead
+                OffsetDateTime created = pod.getMetadata().getCreationTimestamp();
+                if (created != null && history.getLastConnect(podName) >= created.toInstant().toEpochMilli()) {
+                    if (!claim(api, spec.getNamespace(), podName))
+                        outstanding.put(podName, entry.getValue());
+                    continue;
+                }
+
+                // Only delete the pod as read, so a connect claiming it meanwhile wins
+                logger.info("Pre-warmed pod {} was not used. Deleting.", podName);
+                api.deleteNamespacedPod(podName, spec.getNamespace())
+                        .body(new V1DeleteOptions().preconditions(new V1Preconditions()
+                                .resourceVersion(pod.getMetadata().getResourceVersion())))
+                        .execute();
+                wasted.incrementAndGet();
+            } catch (ApiException e) {
+                if (e.getCode() == 409)
+                    logger.info("Pre-warmed pod {} was claimed while expiring. Keeping it.", podName);
+                else if (e.getCode() != 404)
+                    logger.warn("Unable to expire pre-warmed pod {} (HTTP {})", podName, e.getCode());
+            } catch (GuacamoleException e) {
+                logger.warn("Unable to expire pre-warmed pod {}: {}", podName, e.getMessage());
+            }
+        }
+    }
+
+    private CoreV1Api resolveApi(K8sVNCLoginHistory.PodSpec spec) throws GuacamoleException {
+        return K8sVNCClusterPool.getInstance(environment).resolve(spec.getEndpoint(), spec.isSkipTls(),
+                spec.getNamespace(), spec.getPvcName(), spec.getCpu(), spec.getMemory()).getApi();
+    }
+
+    private void report() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        logger.info("Pre-warming: {} pods pre-warmed, {} hits ({} fully ready), {} cold starts, {} expired unused, "
+                + "hit rate {}%, ~{} s of waiting saved (cold start averages {} ms).",
+                prewarms.get(), hitCount, readyHits.get(), missCount, wasted.get(),
+                total > 0 ? (100 * hitCount / total) : 0, savedMillis.get() / 1000,
+                coldLatency > 0 ? (long) coldLatency : "n/a");
+    }
+
+}
@@ -0,0 +1,414 @@
+package org.apache.guacamole.auth.k8s.connection;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.V1Pod;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks which X displays of the multi-session host pods are in use. Each
+ * host pod runs a fixed number of Xvnc instances on displays :1 to :N
+ * (ports 5901 to 5900+N); a session holds one display for as long as its
+ * tunnel is open.
+ *
+ * Assignments are kept in memory, but each host also reports the state of
+ * its displays on STATUS_PORT. Callers check that report before using an
+ * assigned display and reject displays the host reports busy, so displays
+ * held by another Guacamole instance, or from before a restart, are
+ * skipped rather than refused. Hosts which stay empty for IDLE_TIMEOUT are
+ * deleted so they no longer reserve their CPU and memory.
+ */
+public class K8sVNCSharedHosts {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCSharedHosts.class);
+
+    private static final K8sVNCSharedHosts instance = new K8sVNCSharedHosts();
+
+    /**
+     * Label identifying host pods, whose value is the sanitized identifier
+     * of the connection the host serves.
+     */
+    public static final String HOST_LABEL = "k8s-vnc-shared-host";
+
+    /**
+     * The port on which host pods report the state of each display, one
+     * "&lt;display&gt;:&lt;state&gt;" line per display. Only displays in
+     * state "free" may be assigned.
+     */
+    public static final int STATUS_PORT = 5900;
+
+    /**
+     * How long a released display is left alone so the host can reset the
+     * desktop before it is handed to the next user, in milliseconds.
+     */
+    private static final long RELEASE_COOLDOWN = 30000;
+
+    /**
+     * How long a newly assigned host is kept even if it does not yet show up
+     * in the pod list, in milliseconds.
+     */
+    private static final long CREATION_GRACE = 60000;
+
+    /**
+     * How long a host must have had no sessions before it is deleted, in
+     * milliseconds.
+     */
+    private static final long IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * How often idle hosts are looked for, in seconds.
+     */
+    private static final long REAP_INTERVAL = 60;
+
+    /**
+     * Every known host group, keyed by group.
+     */
+    private final Map<String, Group> groups = new HashMap<>();
+
+    private ScheduledExecutorService reaper;
+
+    private K8sVNCSharedHosts() {
+    }
+
+    public static K8sVNCSharedHosts getInstance() {
+        return instance;
+    }
+
+    /**
+     * Assigns a free display to a new session. Displays are packed onto the
+     * fullest host with room left; a new host name is allocated only when
+     * all existing hosts are full.
+     *
+     * @param group
+     *     Identifies the set of interchangeable hosts, e.g. cluster,
+     *     namespace and connection.
+     *
+     * @param hostPrefix
+     *     The name prefix of host pods in this group.
+     *
+     * @param existingHosts
+     *     The names of live host pods currently present in the cluster.
+     *
+     * @param presentHosts
+     *     The names of all host pods currently present in the cluster,
+     *     including those being deleted. Their names are never reused.
+     *
+     * @param sessions
+     *     The number of displays per host.
+     *
+     * @param api
+     *     The API of the cluster the hosts run on, used to delete idle
+     *     hosts.
+     *
+     * @param namespace
+     *     The namespace of the host pods.
+     *
+     * @return
+     *     The assigned display. If its host is not among the existing hosts,
+     *     the caller must create the pod.
+     */
+    public synchronized Slot acquire(String group, String hostPrefix, Collection<String> existingHosts,
+            Collection<String> presentHosts, int sessions, CoreV1Api api, String namespace) {
+        long now = System.currentTimeMillis();
+        Group hostGroup = groups.computeIfAbsent(group, key -> new Group(api, namespace));
+        Map<String, Host> hosts = hostGroup.hosts;
+
+        // Forget hosts which were deleted, keep those just being created
+        hosts.values().removeIf(host -> !existingHosts.contains(host.name) && now - host.created > CREATION_GRACE);
+        // Hosts stay marked as being deleted until their pod is gone
+        hostGroup.deleting.retainAll(presentHosts);
+        for (String name : existingHosts) {
+            if (!hostGroup.deleting.contains(name))
+                hosts.computeIfAbsent(name, key -> new Host(name, sessions, 0, now));
+        }
+
+        Host best = null;
+        int bestFree = Integer.MAX_VALUE;
+        for (Host host : hosts.values()) {
+            int free = host.countFree(now);
+            if (free > 0 && free < bestFree) {
+                best = host;
+                bestFree = free;
+            }
+        }
+
+        if (best == null) {
+            int index = 0;
+            String name = hostPrefix + "-" + index;
+            while (hosts.containsKey(name) || presentHosts.contains(name) || hostGroup.deleting.contains(name))
+                name = hostPrefix + "-" + ++index;
+            best = new Host(name, sessions, now, now);
+            hosts.put(best.name, best);
+            logger.info("All shared hosts of {} are full. Allocating new host {}.", group, best.name);
+        }
+
+        if (reaper == null) {
+            reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "k8s-vnc-shared-reaper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reaper.scheduleWithFixedDelay(this::reapIdleHosts, REAP_INTERVAL, REAP_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        int display = best.claim(now);
+        logger.info("Assigned display :{} on shared host {}.", display, best.name);
+        return new Slot(best, display);
+    }
+
+    /**
+     * Stops looking for idle hosts. Hosts are left running.
+     */
+    public synchronized void shutdown() {
+        if (reaper == null)
+            return;
+        reaper.shutdownNow();
+        reaper = null;
+    }
+
+    /**
+     * Reads the display states reported by a host pod.
+     *
+     * @param podIp
+     *     The IP address of the host pod.
+     *
+     * @return
+     *     The state of each display keyed by display number, or null if the
+     *     host does not report its state (e.g. an older image, or the host
+     *     is still starting).
+     */
+    public static Map<Integer, String> readStatus(String podIp) {
+        Map<Integer, String> status = new HashMap<>();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(podIp, STATUS_PORT), 1000);
+            socket.setSoTimeout(2000);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(":");
+                if (parts.length != 2)
+                    continue;
+                try {
+                    status.put(Integer.parseInt(parts[0]), parts[1]);
+                } catch (NumberFormatException e) {
+                    logger.debug("Ignoring malformed display status \"{}\" from {}", line, podIp);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("No display status from {}: {}", podIp, e.getMessage());
+            return null;
+        }
+        return status.isEmpty() ? null : status;
+    }
+
+    private synchronized void release(Host host, int display) {
+        long now = System.currentTimeMillis();
+        host.inUse[display - 1] = false;
+        host.cooldownUntil[display - 1] = now + RELEASE_COOLDOWN;
+        host.lastUsed = now;
+        logger.debug("Released display :{} on shared host {}.", display, host.name);
+    }
+
+    private synchronized void reject(Host host, int display, Map<Integer, String> status) {
+        long now = System.currentTimeMillis();
+        host.inUse[display - 1] = false;
+        host.cooldownUntil[display - 1] = now + RELEASE_COOLDOWN;
+
+        // Displays which are merely resetting become free shortly, so only
+        // busy ones are skipped without asking the host again
+        for (int i = 0; i < host.inUse.length; i++) {
+            if (!host.inUse[i] && "busy".equals(status.get(i + 1)))
+                host.cooldownUntil[i] = now + RELEASE_COOLDOWN;
+        }
+        logger.info("Display :{} on shared host {} is {}. Skipping it.", display, host.name,
+                status.getOrDefault(display, "unknown"));
+    }
+
+    /**
+     * Deletes hosts which have had no sessions for IDLE_TIMEOUT and whose
+     * displays are all reported free, so no other Guacamole instance uses
+     * them either. Hosts which do not report their state are kept.
+     */
+    private void reapIdleHosts() {
+        List<Group> candidateGroups = new ArrayList<>();
+        List<String> candidates = new ArrayList<>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Group group : groups.values()) {
+                for (Host host : group.hosts.values()) {
+                    if (host.isIdle(now)) {
+                        candidateGroups.add(group);
+                        candidates.add(host.name);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < candidates.size(); i++) {
+            Group group = candidateGroups.get(i);
+            String name = candidates.get(i);
+            try {
+                V1Pod pod = group.api.readNamespacedPod(name, group.namespace).execute();
+                String podIp = pod.getStatus() != null ? pod.getStatus().getPodIP() : null;
+                Map<Integer, String> status = podIp != null ? readStatus(podIp) : null;
+                if (status == null || status.values().stream().anyMatch(state -> !"free".equals(state)))
+                    continue;
+
+                // Make sure no session was assigned while checking
+                synchronized (this) {
+                    Host host = group.hosts.get(name);
+                    if (host == null || !host.isIdle(System.currentTimeMillis()))
+                        continue;
+                    group.hosts.remove(name);
+                    group.deleting.add(name);
+                }
+
+                logger.info("Shared host {} has been idle for {} minutes. Deleting.", name,
+                        TimeUnit.MILLISECONDS.toMinutes(IDLE_TIMEOUT));
+                group.api.deleteNamespacedPod(name, group.namespace).execute();
+
+            } catch (ApiException e) {
+                if (e.getCode() != 404)
+                    logger.warn("Unable to delete idle shared host {} (HTTP {})", name, e.getCode());
+            } catch (Exception e) {
+                logger.warn("Unable to delete idle shared host {}: {}", name, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A single display assigned to a session.
+     */
+    public class Slot {
+
+        private final Host host;
+        private final int display;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Slot(Host host, int display) {
+            this.host = host;
+            this.display = display;
+        }
+
+        public String getHostName() {
+            return host.name;
+        }
+
+        public int getDisplay() {
+            return display;
+        }
+
+        public int getPort() {
+            return 5900 + display;
+        }
+
+        /**
+         * Returns the display to the pool. Calling this more than once has no
+         * further effect.
+         */
+        public void release() {
+            if (released.compareAndSet(false, true))
+                K8sVNCSharedHosts.this.release(host, display);
+        }
+
+        /**
+         * Gives up this display because its host reports it is not free,
+         * and keeps every other display the host reports busy from being
+         * assigned for a while. The caller should acquire another slot.
+         *
+         * @param status
+         *     The display states reported by the host.
+         */
+        public void reject(Map<Integer, String> status) {
+            if (released.compareAndSet(false, true))
+                K8sVNCSharedHosts.this.reject(host, display, status);
+        }
+
+    }
+
+    private static class Group {
+
+        private final CoreV1Api api;
+        private final String namespace;
+        private final Map<String, Host> hosts = new HashMap<>();
+
+        /**
+         * Hosts being deleted, which must not be assigned or recreated until
+         * their pod is gone.
+         */
+        private final Set<String> deleting = new HashSet<>();
+
+        Group(CoreV1Api api, String namespace) {
+            this.api = api;
+            this.namespace = namespace;
+        }
+
+    }
+
+    private static class Host {
+
+        private final String name;
+        private final long created;
+        private final boolean[] inUse;
+        private final long[] cooldownUntil;
+        private long lastUsed;
+
+        Host(String name, int sessions, long created, long lastUsed) {
+            this.name = name;
+            this.created = created;
+            this.inUse = new boolean[sessions];
+            this.cooldownUntil = new long[sessions];
+            this.lastUsed = lastUsed;
+        }
+
+        int countFree(long now) {
+            int free = 0;
+            for (int i = 0; i < inUse.length; i++) {
+                if (!inUse[i] && now >= cooldownUntil[i])
+                    free++;
+            }
+            return free;
+        }
+
+        int claim(long now) {
+            for (int i = 0; i < inUse.length; i++) {
+                if (!inUse[i] && now >= cooldownUntil[i]) {
+                    inUse[i] = true;
+                    lastUsed = now;
+                    return i + 1;
+                }
+            }
+            throw new IllegalStateException("No free display on " + name);
+        }
+
+        boolean isIdle(long now) {
+            for (boolean used : inUse) {
+                if (used)
+                    return false;
+            }
+            return now - lastUsed > IDLE_TIMEOUT && now - created > CREATION_GRACE;
+        }
+
+    }
+
+}
@@ -0,0 +1,324 @@
+package org.apache.guacamole.auth.k8s.connection;
+
+import io.kubernetes.client.openapi.ApiException;
+import io.kubernetes.client.openapi.apis.CoreV1Api;
+import io.kubernetes.client.openapi.models.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers where desktop pods previously ran so that recreated pods can be
+ * scheduled next to their ReadWriteOnce PVC and onto nodes which already
+ * have the image cached. The node and zone a PVC lives in are stored as
+ * annotations on the PVC itself, so they survive restarts of
+ * Guacamole; nodes which recently ran an image are kept in memory only.
+ */
+public class K8sVNCTopologyHints {
+
+    private static final Logger logger = LoggerFactory.getLogger(K8sVNCTopologyHints.class);
+
+    private static final K8sVNCTopologyHints instance = new K8sVNCTopologyHints();
+
+    /**
+     * Label applied to every desktop pod, used to spread them across nodes.
+     */
+    public static final String APP_LABEL = "app";
+
+    public static final String APP_LABEL_VALUE = "guacamole-k8s-vnc";
+
+    static final String NODE_ANNOTATION = "guacamole.apache.org/k8s-vnc-node";
+
+    static final String ZONE_ANNOTATION = "guacamole.apache.org/k8s-vnc-zone";
+
+    private static final String HOSTNAME_LABEL = "kubernetes.io/hostname";
+
+    private static final String ZONE_LABEL = "topology.kubernetes.io/zone";
+
+    /**
+     * The number of nodes remembered per image.
+     */
+    private static final int MAX_IMAGE_NODES = 5;
+
+    /**
+     * The number of placements which may wait to be recorded.
+     */
+    private static final int MAX_PENDING = 100;
+
+    /**
+     * Hostnames of nodes which recently ran each image, keyed by cluster and
+     * image, most recent last.
+     */
+    private final Map<String, LinkedHashSet<String>> imageNodes = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    private K8sVNCTopologyHints() {
+    }
+
+    public static K8sVNCTopologyHints getInstance() {
+        return instance;
+    }
+
+    /**
+     * Builds the preferred node affinity for a new desktop pod. The zone and
+     * node the PVC was last attached in are preferred most strongly, followed
+     * by nodes known to have the image.
+     *
+     * @param clusterName
+     *     The name of the cluster the pod will run on.
+     *
+     * @param image
+     *     The container image of the pod.
+     *
+     * @param pvc
+     *     The PVC the pod will mount, or null if the pod has no PVC.
+     *
+     * @return
+     *     The affinity to apply, or null if nothing is known yet.
+     */
+    public V1Affinity getAffinity(String clusterName, String image, V1PersistentVolumeClaim pvc) {
+        List<V1PreferredSchedulingTerm> terms = new ArrayList<>();
+
+        Map<String, String> annotations = pvc != null && pvc.getMetadata() != null
+                ? pvc.getMetadata().getAnnotations() : null;
+        if (annotations != null) {
+            String zone = annotations.get(ZONE_ANNOTATION);
+            if (zone != null && !zone.isEmpty())
+                terms.add(preferredTerm(100, ZONE_LABEL, Collections.singletonList(zone)));
+            String node = annotations.get(NODE_ANNOTATION);
+            if (node != null && !node.isEmpty())
+                terms.add(preferredTerm(50, HOSTNAME_LABEL, Collections.singletonList(node)));
+        }
+
+        LinkedHashSet<String> nodes = imageNodes.get(clusterName + "|" + image);
+        if (nodes != null) {
+            synchronized (nodes) {
+                if (!nodes.isEmpty())
+                    terms.add(preferredTerm(20, HOSTNAME_LABEL, new ArrayList<>(nodes)));
+            }
+        }
+
+        if (terms.isEmpty())
+            return null;
+
+        return new V1Affinity().nodeAffinity(new V1NodeAffinity()
+                .preferredDuringSchedulingIgnoredDuringExecution(terms));
+    }
+
+    /**
+     * Returns the topology spread constraints applied to every desktop pod.
+     * The constraint is soft so that it never outweighs the PVC's own
+     * placement requirements.
+     *
+     * @return
+     *     The topology spread constraints.
+     */
+    public List<V1TopologySpreadConstraint> getSpreadConstraints() {
+        return Collections.singletonList(new V1TopologySpreadConstraint()
+                .maxSkew(1)
+                .topologyKey(HOSTNAME_LABEL)
+                .whenUnsatisfiable("ScheduleAnyway")
+                .labelSelector(new V1LabelSelector()
+                        .matchLabels(Collections.singletonMap(APP_LABEL, APP_LABEL_VALUE))));
+    }
+
+    /**
+     * Records the node a running pod was scheduled to for the image it runs,
+     * and where its PVC lives on the PVC. The location of a bound PVC is
+     * taken from the node affinity of its PersistentVolume, which is where
+     * the storage actually is; the pod's own node and zone are used only if
+     * the volume has no node affinity or cannot be read. This takes several
+     * API calls, so it is done in the background and the connect does not
+     * wait for it. Failures are logged and otherwise ignored, as hints are
+     * best-effort; if recording falls behind, placements are dropped.
+     *
+     * @param api
+     *     The API of the cluster the pod runs on.
+     *
+     * @param clusterName
+     *     The name of that cluster.
+     *
+     * @param namespace
+     *     The namespace of the pod and PVC.
+     *
+     * @param podName
+     *     The name of the running pod.
+     *
+     * @param pvcName
+     *     The name of the PVC mounted by the pod, or null if the pod has no
+     *     PVC.
+     *
+     * @param image
+     *     The container image of the pod.
+     */
+    public void recordPlacement(CoreV1Api api, String clusterName, String namespace, String podName,
+            String pvcName, String image) {
+        ExecutorService recorder;
+        synchronized (this) {
+            if (executor == null)
+                executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<>(MAX_PENDING), runnable -> {
+                            Thread thread = new Thread(runnable, "k8s-vnc-placement");
+                            thread.setDaemon(true);
+                            return thread;
+                        }, new ThreadPoolExecutor.DiscardPolicy());
+            recorder = executor;
+        }
+        recorder.execute(() -> recordPlacementNow(api, clusterName, namespace, podName, pvcName, image));
+    }
+
+    /**
+     * Stops recording placements. Pending placements are dropped.
+     */
+    public synchronized void shutdown() {
+        if (executor == null)
+            return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    private void recordPlacementNow(CoreV1Api api, String clusterName, String namespace, String podName,
+            String pvcName, String image) {
+        try {
+            V1Pod pod = api.readNamespacedPod(podName, namespace).execute();
+            String nodeName = pod.getSpec() != null ? pod.getSpec().getNodeName() : null;
+            if (nodeName == null)
+                return;
+
+            // Resolve hostname and zone labels; reading nodes may be forbidden
+            String hostname = nodeName;
+            String zone = null;
+            try {
+                V1Node node = api.readNode(nodeName).execute();
+                Map<String, String> labels = node.getMetadata() != null ? node.getMetadata().getLabels() : null;
+                if (labels != null) {
+                    hostname = labels.getOrDefault(HOSTNAME_LABEL, nodeName);
+                    zone = labels.get(ZONE_LABEL);
+                }
+            } catch (ApiException e) {
+                logger.debug("Unable to read node {} (HTTP {}). Recording node name only.", nodeName, e.getCode());
+            }
+
+            LinkedHashSet<String> nodes = imageNodes.computeIfAbsent(clusterName + "|" + image,
+                    key -> new LinkedHashSet<>());
+            synchronized (nodes) {
+                nodes.remove(hostname);
+                nodes.add(hostname);
+                if (nodes.size() > MAX_IMAGE_NODES)
+                    nodes.remove(nodes.iterator().next());
+            }
+
+            if (pvcName == null)
+                return;
+
+            V1PersistentVolumeClaim pvc = api.readNamespacedPersistentVolumeClaim(pvcName, namespace).execute();
+
+            // Prefer the location of the volume over that of the pod
+            Map<String, String> volumeTopology = getVolumeTopology(api, pvc);
+            if (volumeTopology != null) {
+                hostname = volumeTopology.get(HOSTNAME_LABEL);
+                zone = volumeTopology.get(ZONE_LABEL);
+            }
+
+            Map<String, String> annotations = pvc.getMetadata().getAnnotations() != null
+                    ? new HashMap<>(pvc.getMetadata().getAnnotations()) : new HashMap<>();
+            boolean changed = setAnnotation(annotations, NODE_ANNOTATION, hostname);
+            changed |= setAnnotation(annotations, ZONE_ANNOTATION, zone);
+
+            if (changed) {
+                logger.info("Recording placement of PVC {}: node={}, zone={}", pvcName, hostname, zone);
+                pvc.getMetadata().setAnnotations(annotations);
+                api.replaceNamespacedPersistentVolumeClaim(pvcName, namespace, pvc).execute();
+            }
+
+        } catch (ApiException e) {
+            logger.warn("Unable to record placement of pod {} (HTTP {}): {}", podName, e.getCode(),
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the hostname and zone a bound PVC's volume is pinned to by the
+     * required node affinity of its PersistentVolume. A key is only present
+     * if the affinity names exactly one value for it.
+     *
+     * @param api
+     *     The API of the cluster the PVC lives in.
+     *
+     * @param pvc
+     *     The PVC.
+     *
+     * @return
+     *     The pinned topology keyed by node label, or null if the PVC is not
+     *     bound, the volume cannot be read or it has no node affinity.
+     */
+    private static Map<String, String> getVolumeTopology(CoreV1Api api, V1PersistentVolumeClaim pvc) {
+        String volumeName = pvc.getSpec() != null ? pvc.getSpec().getVolumeName() : null;
+        if (volumeName == null || pvc.getStatus() == null || !"Bound".equals(pvc.getStatus().getPhase()))
+            return null;
+
+        V1PersistentVolume volume;
+        try {
+            volume = api.readPersistentVolume(volumeName).execute();
+        } catch (ApiException e) {
+            logger.debug("Unable to read volume {} (HTTP {}). Using the pod's placement.", volumeName,
+                    e.getCode());
+            return null;
+        }
+
+        V1VolumeNodeAffinity affinity = volume.getSpec() != null ? volume.getSpec().getNodeAffinity() : null;
+        if (affinity == null || affinity.getRequired() == null)
+            return null;
+
+        Map<String, Set<String>> values = new HashMap<>();
+        for (V1NodeSelectorTerm term : affinity.getRequired().getNodeSelectorTerms()) {
+            if (term.getMatchExpressions() == null)
+                continue;
+            for (V1NodeSelectorRequirement requirement : term.getMatchExpressions()) {
+                if ("In".equals(requirement.getOperator()) && requirement.getValues() != null)
+                    values.computeIfAbsent(requirement.getKey(), key -> new HashSet<>())
+                            .addAll(requirement.getValues());
+            }
+        }
+
+        Map<String, String> topology = new HashMap<>();
+        for (String key : new String[] { HOSTNAME_LABEL, ZONE_LABEL }) {
+            Set<String> keyValues = values.get(key);
+            if (keyValues != null && keyValues.size() == 1)
+                topology.put(key, keyValues.iterator().next());
+        }
+        return topology.isEmpty() ? null : topology;
+    }
+
+    // Sets or, if the value is null, removes an annotation, returning whether it changed
+    private static boolean setAnnotation(Map<String, String> annotations, String name, String value) {
+        if (value == null)
+            return annotations.remove(name) != null;
+        return !value.equals(annotations.put(name, value));
+    }
+
+    private static V1PreferredSchedulingTerm preferredTerm(int weight, String key, List<String> values) {
+        return new V1PreferredSchedulingTerm()
+                .weight(weight)
+                .preference(new V1NodeSelectorTerm()
+                        .addMatchExpressionsItem(new V1NodeSelectorRequirement()
+                                .key(key)
+                                .operator("In")
+                                .values(values)));
+    }
+
+}
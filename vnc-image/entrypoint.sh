@@ -8,6 +8,116 @@ USER_GID=${VNC_GID:-1000}
 RESOLUTION=${VNC_RESOLUTION:-1280x800}
 DEPTH=${VNC_COL_DEPTH:-24}
 PASSWORD=${VNC_PW:-guacamole}
+SESSIONS=${VNC_SESSIONS:-}
+RESET_DELAY=${VNC_SESSION_RESET_DELAY:-10}
+STATUS_DIR=/run/vnc-sessions
+STATUS_PORT=5900
+
+find_vncpasswd() {
+    if [ -x "/usr/bin/vncpasswd" ]; then
+        echo "/usr/bin/vncpasswd"
+    elif [ -x "/usr/bin/tigervncpasswd" ]; then
+        echo "/usr/bin/tigervncpasswd"
+    else
+        # Last ditch attempt: use `type` or search
+        command -v vncpasswd || command -v tigervncpasswd || true
+    fi
+}
+
+# Shared-host mode: one kiosk user and one Xvnc per display :1..:N. Each
+# session starts from an empty home directory which is wiped once its client
+# has been gone for RESET_DELAY seconds, before the display is reused. The
+# state of each display (free, busy or resetting) is kept in STATUS_DIR and
+# served on STATUS_PORT so Guacamole only assigns free displays.
+run_session() {
+    local NUM=$1
+    local SESSION_USER="${USER_NAME}${NUM}"
+    local SESSION_UID=$((USER_UID + NUM))
+    local SESSION_HOME="/home/$SESSION_USER"
+    local PORT=$((5900 + NUM))
+
+    if ! id -u "$SESSION_USER" >/dev/null 2>&1; then
+        useradd -u "$SESSION_UID" -g "$USER_GID" -M -d "$SESSION_HOME" -s /bin/bash "$SESSION_USER"
+    fi
+
+    while true; do
+        echo resetting > "$STATUS_DIR/$NUM"
+        rm -rf "$SESSION_HOME" "/tmp/.X${NUM}-lock" "/tmp/.X11-unix/X${NUM}"
+        mkdir -p "$SESSION_HOME/.vnc"
+        cp /etc/skel/.bashrc /etc/skel/.profile "$SESSION_HOME/"
+        cat > "$SESSION_HOME/.vnc/xstartup" <<STARTUP
+#!/bin/sh
+unset SESSION_MANAGER
+unset DBUS_SESSION_BUS_ADDRESS
+exec /usr/bin/startxfce4
+STARTUP
+        chmod +x "$SESSION_HOME/.vnc/xstartup"
+        echo "$PASSWORD" | $VNCPASSWD_CMD -f > "$SESSION_HOME/.vnc/passwd"
+        chmod 600 "$SESSION_HOME/.vnc/passwd"
+        chown -R "$SESSION_UID:$USER_GID" "$SESSION_HOME"
+        chmod 700 "$SESSION_HOME"
+
+        # Refuse a second client on a busy display instead of sharing it
+        echo "Starting session :$NUM for $SESSION_USER on port $PORT..."
+        sudo -u "$SESSION_USER" HOME="$SESSION_HOME" vncserver ":$NUM" -fg -geometry "$RESOLUTION" \
+            -depth "$DEPTH" -localhost no -NeverShared -DisconnectClients=0 &
+        local PID=$!
+        echo free > "$STATUS_DIR/$NUM"
+
+        # Reset the session once the client has disconnected
+        local SEEN=0
+        local IDLE=0
+        while kill -0 "$PID" 2>/dev/null; do
+            if netstat -tn 2>/dev/null | awk -v port=":$PORT" '$6 == "ESTABLISHED" && substr($4, length($4) - length(port) + 1) == port { found = 1 } END { exit !found }'; then
+                SEEN=1
+                IDLE=0
+                echo busy > "$STATUS_DIR/$NUM"
+            elif [ "$SEEN" = 1 ]; then
+                IDLE=$((IDLE + 2))
+                if [ "$IDLE" -ge "$RESET_DELAY" ]; then
+                    echo "Session :$NUM disconnected. Resetting..."
+                    echo resetting > "$STATUS_DIR/$NUM"
+                    sudo -u "$SESSION_USER" HOME="$SESSION_HOME" vncserver -kill ":$NUM" || kill "$PID"
+                fi
+            fi
+            sleep 2
+        done
+        wait "$PID" || true
+        pkill -u "$SESSION_USER" || true
+        sleep 1
+    done
+}
+
+# Any VNC_SESSIONS value, including 1, selects shared mode so that sessions
+# are always isolated and reset between users
+if [ -n "$SESSIONS" ]; then
+    echo "Starting shared VNC host with $SESSIONS sessions..."
+    VNCPASSWD_CMD=$(find_vncpasswd)
+    if [ -z "$VNCPASSWD_CMD" ]; then
+        echo "ERROR: vncpasswd command not found! PATH: $PATH"
+        exit 1
+    fi
+
+    if ! getent group "$USER_GID" >/dev/null; then
+        groupadd -g "$USER_GID" "$USER_NAME"
+    fi
+    mkdir -p /tmp/.X11-unix "$STATUS_DIR"
+    chmod 1777 /tmp/.X11-unix
+
+    for NUM in $(seq 1 "$SESSIONS"); do
+        echo resetting > "$STATUS_DIR/$NUM"
+        run_session "$NUM" &
+    done
+
+    # One "<display>:<state>" line per display
+    socat "TCP-LISTEN:$STATUS_PORT,reuseaddr,fork" SYSTEM:"cd $STATUS_DIR && grep -H . *" &
+
+    # Stop serving displays as soon as the pod is deleted; all sessions and
+    # the status port end with this shell
+    trap 'exit 0' TERM INT
+    wait
+    exit 1
+fi
 
 echo "Starting VNC Container..."
 echo "User: $USER_NAME ($USER_UID:$USER_GID)"
@@ -67,16 +177,7 @@ EOF
 # Set Password (as root to ensure PATH access, then chown)
 mkdir -p "$HOME_DIR/.vnc"
 
-VNCPASSWD_CMD=""
-if [ -x "/usr/bin/vncpasswd" ]; then
-    VNCPASSWD_CMD="/usr/bin/vncpasswd"
-elif [ -x "/usr/bin/tigervncpasswd" ]; then
-    VNCPASSWD_CMD="/usr/bin/tigervncpasswd"
-else
-    # Last ditch attempt: use `type` or search
-    if command -v vncpasswd >/dev/null; then VNCPASSWD_CMD=$(command -v vncpasswd); fi
-    if [ -z "$VNCPASSWD_CMD" ] && command -v tigervncpasswd >/dev/null; then VNCPASSWD_CMD=$(command -v tigervncpasswd); fi
-fi
+VNCPASSWD_CMD=$(find_vncpasswd)
 
 if [ -z "$VNCPASSWD_CMD" ]; then
     echo "ERROR: vncpasswd command not found! PATH: $PATH"